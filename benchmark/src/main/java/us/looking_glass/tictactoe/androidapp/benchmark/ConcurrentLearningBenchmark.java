@@ -0,0 +1,112 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import us.looking_glass.tictactoe.*;
+import us.looking_glass.tictactoe.androidapp.BrainReplicas;
+import us.looking_glass.tictactoe.androidapp.PackedMoves;
+import us.looking_glass.util.Serializer;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Training throughput of a learning brain on all cores, with the brain shared under its lock for each game, as the
+ * trainer used to, or with a replica per worker merged into it every {@code mergeGames} games. One operation is
+ * {@code games} self-play games against a random opponent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentLearningBenchmark {
+    @Param({ "BeanCounterPlayer", "LMSRankPlayer" })
+    public String brain;
+
+    @Param({ "locked", "replicas" })
+    public String mode;
+
+    @Param({ "64" })
+    public int mergeGames;
+
+    @Param({ "2000" })
+    public int games;
+
+    private final int threads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService pool;
+    private Serializer serializer;
+    private Player trainee;
+    private Player opponent;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pool = Executors.newFixedThreadPool(threads);
+        serializer = new Serializer();
+        trainee = "LMSRankPlayer".equals(brain) ? new LMSRankPlayer() : new BeanCounterPlayer();
+        opponent = new RandomPlayer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Player train() throws InterruptedException, ExecutionException {
+        final AtomicLong started = new AtomicLong();
+        final boolean replicated = "replicas".equals(mode);
+        final BrainReplicas replicas = replicated ? new BrainReplicas(serializer, trainee, opponent, mergeGames) : null;
+        Future<?>[] workers = new Future<?>[threads];
+        for (int i = 0; i < threads; i++)
+            workers[i] = pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    BrainReplicas.Replica replica = replicated ? replicas.replica() : null;
+                    try {
+                        for (long n = started.getAndIncrement(); n < games; n = started.getAndIncrement()) {
+                            boolean traineeFirst = (n & 1) == 0;
+                            if (replicated) {
+                                Game game = traineeFirst ? new Game(replica.brain(), replica.opponent())
+                                        : new Game(replica.opponent(), replica.brain());
+                                long moves = 0;
+                                while (game.status() == Game.PLAYING) {
+                                    game.run(1);
+                                    moves = PackedMoves.append(moves, game.board());
+                                }
+                                replica.played(moves, traineeFirst);
+                            } else {
+                                synchronized (trainee) {
+                                    Game game = traineeFirst ? new Game(trainee, opponent) : new Game(opponent, trainee);
+                                    while (game.status() == Game.PLAYING)
+                                        game.run(1);
+                                }
+                            }
+                        }
+                    } finally {
+                        if (replicated)
+                            replica.merge();
+                    }
+                }
+            });
+        for (Future<?> worker : workers)
+            worker.get();
+        return trainee;
+    }
+}
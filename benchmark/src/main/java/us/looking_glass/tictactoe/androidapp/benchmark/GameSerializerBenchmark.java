@@ -0,0 +1,133 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.OptimalPlayer;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.tictactoe.androidapp.GameCodec;
+import us.looking_glass.tictactoe.androidapp.GameSerializer;
+import us.looking_glass.tictactoe.androidapp.PackedMoves;
+import us.looking_glass.tictactoe.androidapp.TestPlayerRegistry;
+import us.looking_glass.util.Serializer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costs of what GameActivity writes to the game table on every matchup switch and pause: the game and the tally, both
+ * with the legacy Java serialization (players replaced by ID proxies) and with {@link GameCodec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameSerializerBenchmark {
+    private Serializer serializer;
+    private GameSerializer gameSerializer;
+    private GameCodec codec;
+    private Game game;
+    private long moves;
+    private long[] tally;
+    private byte[] gameBytes;
+    private byte[] tallyBytes;
+    private byte[] gameCodecBytes;
+    private byte[] tallyCodecBytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TestPlayerRegistry registry = new TestPlayerRegistry();
+        Player p1 = new OptimalPlayer();
+        registry.register(5, p1);
+        serializer = new Serializer();
+        gameSerializer = new GameSerializer(registry);
+        // A game in progress with an AI and a user, as stored by a typical pause.
+        game = new Game(p1, null);
+        game.run(1);
+        moves = PackedMoves.append(0, game.board());
+        game.play(1, 1, game.getCurrentPlayer());
+        moves = PackedMoves.append(moves, game.board());
+        tally = new long[] { 1234, 567, 8901, 0, 0, 0 };
+        gameBytes = gameSerializer.toBytes(game);
+        tallyBytes = serializer.toBytes(tally);
+        codec = new GameCodec(registry, gameSerializer, serializer);
+        gameCodecBytes = codec.encodeGame(game, moves);
+        tallyCodecBytes = codec.encodeTally(tally);
+    }
+
+    /**
+     * The sizes of the blobs in bytes, reported with the score of each benchmark.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long serializedGame;
+        public long serializedTally;
+        public long encodedGame;
+        public long encodedTally;
+
+        @Setup(Level.Iteration)
+        public void setup(GameSerializerBenchmark benchmark) {
+            serializedGame = benchmark.gameBytes.length;
+            serializedTally = benchmark.tallyBytes.length;
+            encodedGame = benchmark.gameCodecBytes.length;
+            encodedTally = benchmark.tallyCodecBytes.length;
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeGame(Sizes sizes) {
+        return gameSerializer.toBytes(game);
+    }
+
+    @Benchmark
+    public Object decodeGame(Sizes sizes) {
+        return gameSerializer.fromBytes(gameBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeTally(Sizes sizes) {
+        return serializer.toBytes(tally);
+    }
+
+    @Benchmark
+    public Object decodeTally(Sizes sizes) {
+        return serializer.fromBytes(tallyBytes);
+    }
+
+    @Benchmark
+    public byte[] codecEncodeGame(Sizes sizes) {
+        return codec.encodeGame(game, moves);
+    }
+
+    @Benchmark
+    public Object codecDecodeGame(Sizes sizes) {
+        return codec.decodeGame(gameCodecBytes);
+    }
+
+    @Benchmark
+    public byte[] codecEncodeTally(Sizes sizes) {
+        return codec.encodeTally(tally);
+    }
+
+    @Benchmark
+    public Object codecDecodeTally(Sizes sizes) {
+        return codec.decodeTally(tallyCodecBytes);
+    }
+}
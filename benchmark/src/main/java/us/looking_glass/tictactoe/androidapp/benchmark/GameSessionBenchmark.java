@@ -0,0 +1,136 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import us.looking_glass.tictactoe.*;
+import us.looking_glass.tictactoe.androidapp.GameCodec;
+import us.looking_glass.tictactoe.androidapp.GameSerializer;
+import us.looking_glass.tictactoe.androidapp.GameSession;
+import us.looking_glass.tictactoe.androidapp.GameSnapshot;
+import us.looking_glass.tictactoe.androidapp.TestPlayerRegistry;
+import us.looking_glass.util.Serializer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The interactive session engine on a plain JVM: an AI vs AI matchup driven by taps, as the game thread drives it,
+ * with storage in memory, no display and both executors direct. One operation is one tap, which plays a move or
+ * starts the next game; every 1000 taps the session saves and switches matchups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameSessionBenchmark {
+    @Param({ "RandomPlayer", "BeanCounterPlayer", "OptimalPlayer" })
+    public String brain;
+
+    private GameSession session;
+    private int taps = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TestPlayerRegistry registry = new TestPlayerRegistry();
+        registry.register(2, new RandomPlayer());
+        registry.register(3, "BeanCounterPlayer".equals(brain) ? new BeanCounterPlayer()
+                : "OptimalPlayer".equals(brain) ? new OptimalPlayer() : new RandomPlayer());
+        Serializer serializer = new Serializer();
+        GameCodec codec = new GameCodec(registry, new GameSerializer(registry), serializer);
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        session = new GameSession(registry, codec, serializer, new MemoryStorage(), new NullSink(), direct, direct);
+        session.start(3, 2);
+    }
+
+    @Benchmark
+    public void tap() {
+        session.tap();
+        if (++taps % 1000 == 0) {
+            session.save();
+            long[] selected = session.selectedPlayers();
+            session.setPlayer(0, selected[1]);
+        }
+    }
+
+    private static class MemoryStorage implements GameSession.Storage {
+        private final Map<String, GameSnapshot> matchups = new HashMap<String, GameSnapshot>();
+
+        @Override
+        public GameSnapshot load(long p1id, long p2id) {
+            return matchups.get(p1id + ":" + p2id);
+        }
+
+        @Override
+        public Future<?> save(GameSnapshot snapshot, boolean selected) {
+            matchups.put(snapshot.p1id + ":" + snapshot.p2id, snapshot);
+            FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            done.run();
+            return done;
+        }
+
+        @Override
+        public void brainChanged(Player player) {
+        }
+
+        @Override
+        public void gameFinished(long p1id, long p2id, int result, long moves) {
+        }
+
+        @Override
+        public void holdBrains(boolean held) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    private static class NullSink implements GameSession.Sink {
+        @Override
+        public void board(int board) {
+        }
+
+        @Override
+        public void tally(CharSequence tally) {
+        }
+
+        @Override
+        public void input(int state, int waitingPlayer) {
+        }
+
+        @Override
+        public void error(String message, Throwable e) {
+            throw new IllegalStateException(message, e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import us.looking_glass.tictactoe.*;
+import us.looking_glass.tictactoe.androidapp.LogRecordStore;
+import us.looking_glass.tictactoe.androidapp.RecordStore;
+import us.looking_glass.util.Serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checkpoint writes of a training run against the log-structured store: every operation saves one of a few trained
+ * brains and the selected matchup in one batch, so the file grows by a brain per operation and is compacted in the
+ * background as it goes. The SQLite store can only run on a device; compare its store.sqlite.write histogram with
+ * store.log.write from the same workload there.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogRecordStoreBenchmark {
+    @Param({ "BeanCounterPlayer", "LMSRankPlayer" })
+    public String brain;
+
+    @Param({ "false", "true" })
+    public boolean sync;
+
+    private File file;
+    private ExecutorService compactor;
+    private LogRecordStore store;
+    private byte[][] states;
+    private byte[] selected;
+    private long count = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Serializer serializer = new Serializer();
+        Player player = "LMSRankPlayer".equals(brain) ? new LMSRankPlayer() : new BeanCounterPlayer();
+        Player opponent = new RandomPlayer();
+        // States from successive points of a training run, so consecutive checkpoints differ like real ones do.
+        states = new byte[8][];
+        for (int i = 0; i < states.length; i++) {
+            for (int j = 0; j < 250; j++) {
+                Game game = (j & 1) == 0 ? new Game(player, opponent) : new Game(opponent, player);
+                while (game.status() == Game.PLAYING)
+                    game.run(1);
+            }
+            states[i] = serializer.toBytes(player);
+        }
+        selected = serializer.toBytes(new long[] { 3, 2 });
+        file = File.createTempFile("records", ".log");
+        file.delete();
+        compactor = Executors.newSingleThreadExecutor();
+        store = new LogRecordStore(file, compactor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        compactor.shutdown();
+        file.delete();
+    }
+
+    /**
+     * The bytes in the log file and those of its live records after the last operation, reported with the score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long fileBytes;
+        public long liveBytes;
+    }
+
+    @Benchmark
+    public void checkpoint(Sizes sizes) throws IOException {
+        long n = count++;
+        store.write(new RecordStore.Batch().brain(2 + (n & 3), states[(int) (n % states.length)]).state("selectedPlayers", selected));
+        if (sync)
+            store.sync();
+        sizes.fileBytes = store.size();
+        sizes.liveBytes = store.liveBytes();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import us.looking_glass.tictactoe.*;
+import us.looking_glass.util.Serializer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costs of the full brain blobs written to the brains table by savePlayer() after every game. Learning players are
+ * trained for a number of self-play games first so their state is representative.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerSerializerBenchmark {
+    @Param({ "RandomPlayer", "BeanCounterPlayer", "LMSRankPlayer", "OptimalPlayer" })
+    public String brain;
+
+    @Param({ "0", "1000" })
+    public int trainingGames;
+
+    private Serializer serializer;
+    private Player player;
+    private byte[] playerBytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        serializer = new Serializer();
+        if ("RandomPlayer".equals(brain))
+            player = new RandomPlayer();
+        else if ("BeanCounterPlayer".equals(brain))
+            player = new BeanCounterPlayer();
+        else if ("LMSRankPlayer".equals(brain))
+            player = new LMSRankPlayer();
+        else if ("OptimalPlayer".equals(brain))
+            player = new OptimalPlayer();
+        else
+            throw new IllegalArgumentException("Unknown brain: " + brain);
+        for (int i = 0; i < trainingGames; i++) {
+            Game game = new Game(player, player);
+            while (game.status() == Game.PLAYING)
+                game.run(1);
+        }
+        playerBytes = serializer.toBytes(player);
+    }
+
+    /**
+     * The size of the brain's blob in bytes, reported with the score of each benchmark.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long playerBytes;
+
+        @Setup(Level.Iteration)
+        public void setup(PlayerSerializerBenchmark benchmark) {
+            playerBytes = benchmark.playerBytes.length;
+        }
+    }
+
+    @Benchmark
+    public byte[] encodePlayer(Sizes sizes) {
+        return serializer.toBytes(player);
+    }
+
+    @Benchmark
+    public Object decodePlayer(Sizes sizes) {
+        return serializer.fromBytes(playerBytes);
+    }
+}
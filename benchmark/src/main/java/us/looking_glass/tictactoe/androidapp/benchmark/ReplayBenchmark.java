@@ -0,0 +1,119 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import us.looking_glass.tictactoe.*;
+import us.looking_glass.tictactoe.androidapp.ReplayLog;
+import us.looking_glass.util.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Move throughput of the real Game and Player code, measured by replaying a log of games. The log is generated in
+ * setup from a mix of matchups between the stock brains and a random "human"; a replay log taken from a device can
+ * be used instead by pointing -Dreplay.log at it. One operation replays the whole log, brains deserialized included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+    @Param({ "1000" })
+    public int games;
+
+    private Serializer serializer;
+    private byte[] log;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        serializer = new Serializer();
+        String file = System.getProperty("replay.log");
+        if (file != null) {
+            log = java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(file));
+        } else {
+            log = generate();
+        }
+    }
+
+    /**
+     * The log replayed: its size in bytes and the games and moves in it, reported with the benchmark's score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class LogSize {
+        public long logBytes;
+        public long loggedGames;
+        public long loggedMoves;
+        public long divergedGames;
+
+        @Setup(Level.Trial)
+        public void setup(ReplayBenchmark benchmark) throws IOException {
+            ReplayLog.Result check = ReplayLog.replay(new ByteArrayInputStream(benchmark.log), benchmark.serializer);
+            logBytes = benchmark.log.length;
+            loggedGames = check.games;
+            loggedMoves = check.moves;
+            divergedGames = check.diverged;
+        }
+    }
+
+    private byte[] generate() throws IOException {
+        // Id 1 is the human, as in the brains table.
+        Player[] brains = new Player[] { null, null, new RandomPlayer(), new BeanCounterPlayer(), new LMSRankPlayer(), new OptimalPlayer() };
+        Random random = new Random(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ReplayLog.Writer writer = new ReplayLog.Writer(bytes, serializer);
+        for (int i = 0; i < games; i++) {
+            int p1id = 1 + random.nextInt(5);
+            int p2id = p1id == 1 ? 2 + random.nextInt(4) : 1 + random.nextInt(5);
+            writer.brain(p1id, brains[p1id]);
+            writer.brain(p2id, brains[p2id]);
+            long seed = random.nextLong();
+            Player.prng.setSeed(ReplayLog.seedArray(seed));
+            Game game = new Game(brains[p1id], brains[p2id]);
+            long moves = 0;
+            for (int count = 0; game.status() == Game.PLAYING; count++) {
+                int before = game.board();
+                if (game.getPlayer() == null) {
+                    int cell;
+                    do {
+                        cell = random.nextInt(9);
+                    } while (Board.get(before, cell / 3, cell % 3) != 0);
+                    game.play(cell / 3, cell % 3, game.getCurrentPlayer());
+                } else
+                    game.run(1);
+                for (int cell = 0; cell < 9; cell++)
+                    if (Board.get(before, cell / 3, cell % 3) == 0 && Board.get(game.board(), cell / 3, cell % 3) != 0)
+                        moves |= (long) (cell + 1) << (count * 4);
+            }
+            writer.game(p1id, p2id, seed, moves, game.status());
+        }
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public ReplayLog.Result replay(LogSize size) throws IOException {
+        return ReplayLog.replay(new ByteArrayInputStream(log), serializer);
+    }
+}
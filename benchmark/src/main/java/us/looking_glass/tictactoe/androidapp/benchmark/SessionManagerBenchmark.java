@@ -0,0 +1,148 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import us.looking_glass.tictactoe.*;
+import us.looking_glass.tictactoe.androidapp.GameCodec;
+import us.looking_glass.tictactoe.androidapp.GameSerializer;
+import us.looking_glass.tictactoe.androidapp.GameSession;
+import us.looking_glass.tictactoe.androidapp.GameSnapshot;
+import us.looking_glass.tictactoe.androidapp.SessionManager;
+import us.looking_glass.tictactoe.androidapp.TestPlayerRegistry;
+import us.looking_glass.util.Serializer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Many AI vs AI matchups driven at once through a session manager. One operation taps every matchup once and waits
+ * until all of them have played their move, so the score is rounds per second; with more matchups than workers it
+ * shows how well the pool keeps the cores busy. The matchups share the stock brains, so some of them wait for each
+ * other's brain locks, as they would in the app.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionManagerBenchmark {
+    @Param({ "1", "4", "16" })
+    public int matchups;
+
+    private ExecutorService storageThread;
+    private SessionManager manager;
+    private final List<SessionManager.Matchup> open = new ArrayList<SessionManager.Matchup>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TestPlayerRegistry registry = new TestPlayerRegistry();
+        registry.register(2, new RandomPlayer());
+        registry.register(3, new BeanCounterPlayer());
+        registry.register(4, new LMSRankPlayer());
+        registry.register(5, new OptimalPlayer());
+        Serializer serializer = new Serializer();
+        GameCodec codec = new GameCodec(registry, new GameSerializer(registry), serializer);
+        storageThread = Executors.newSingleThreadExecutor();
+        manager = new SessionManager(registry, codec, serializer, new MemoryStorage(), storageThread,
+                Runtime.getRuntime().availableProcessors(), 60000);
+        for (int i = 0; i < matchups; i++)
+            open.add(manager.open(2 + i % 4, 2 + i / 4 % 4, new NullSink()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        if (!manager.shutdown(5000))
+            throw new IllegalStateException("Sessions still running after shutdown");
+        storageThread.shutdown();
+    }
+
+    @Benchmark
+    public void round() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(open.size());
+        Runnable countDown = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        for (SessionManager.Matchup matchup : open) {
+            matchup.tap();
+            matchup.whenIdle(countDown);
+        }
+        done.await();
+    }
+
+    private static class MemoryStorage implements GameSession.Storage {
+        private final Map<String, GameSnapshot> stored = new ConcurrentHashMap<String, GameSnapshot>();
+
+        @Override
+        public GameSnapshot load(long p1id, long p2id) {
+            return stored.get(p1id + ":" + p2id);
+        }
+
+        @Override
+        public Future<?> save(GameSnapshot snapshot, boolean selected) {
+            stored.put(snapshot.p1id + ":" + snapshot.p2id, snapshot);
+            FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            done.run();
+            return done;
+        }
+
+        @Override
+        public void brainChanged(Player player) {
+        }
+
+        @Override
+        public void gameFinished(long p1id, long p2id, int result, long moves) {
+        }
+
+        @Override
+        public void holdBrains(boolean held) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    private static class NullSink implements GameSession.Sink {
+        @Override
+        public void board(int board) {
+        }
+
+        @Override
+        public void tally(CharSequence tally) {
+        }
+
+        @Override
+        public void input(int state, int waitingPlayer) {
+        }
+
+        @Override
+        public void error(String message, Throwable e) {
+            throw new IllegalStateException(message, e);
+        }
+    }
+}
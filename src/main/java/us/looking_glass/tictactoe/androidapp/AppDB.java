@@ -24,20 +24,25 @@ import us.looking_glass.tictactoe.BeanCounterPlayer;
 import us.looking_glass.tictactoe.LMSRankPlayer;
 import us.looking_glass.tictactoe.OptimalPlayer;
 import us.looking_glass.tictactoe.RandomPlayer;
-import us.looking_glass.util.Serializer;
 
 public class AppDB extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "tictactoe.db";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 8;
     static final String BRAINS_TABLE_NAME = "brains";
     static final String KEY_ID = "_id";
     static final String KEY_NAME = "name";
     static final String KEY_STATE = "state";
+    static final String KEY_RATING = "rating";
+    static final String KEY_GAMES = "games";
     static final String BRAINS_TABLE_CREATE =
             "CREATE TABLE " + BRAINS_TABLE_NAME + " ("
             + KEY_ID + " integer primary key on conflict replace, "
             + KEY_NAME + " text not null unique, "
-            + KEY_STATE + " blob);";
+            + KEY_STATE + " blob, "
+            + KEY_RATING + " real not null default " + Ratings.INITIAL + ", "
+            + KEY_GAMES + " integer not null default 0);";
+    static final String RATING_INDEX_CREATE =
+            "CREATE INDEX " + BRAINS_TABLE_NAME + "_" + KEY_RATING + " ON " + BRAINS_TABLE_NAME + " (" + KEY_RATING + ");";
     static final String APPSTATE_TABLE_NAME = "appstate";
     static final String KEY_VALUE = "value";
     static final String APPSTATE_TABLE_CREATE =
@@ -61,9 +66,52 @@ public class AppDB extends SQLiteOpenHelper {
             + KEY_TALLY + " blob, "
             + KEY_GAME + " blob, "
             + "unique (" + KEY_P1ID + ", " + KEY_P2ID + ") on conflict replace);";
+    static final String JOURNAL_TABLE_NAME = "journal";
+    static final String KEY_BRAIN = "brain";
+    static final String KEY_DELTA = "delta";
+    static final String JOURNAL_TABLE_CREATE =
+            "CREATE TABLE " + JOURNAL_TABLE_NAME + " ("
+            + KEY_ID + " integer primary key, "
+            + KEY_BRAIN + " integer not null references " + BRAINS_TABLE_NAME + "(" + KEY_ID + ") on delete cascade, "
+            + KEY_DELTA + " blob not null);";
+    static final String JOURNAL_INDEX_CREATE =
+            "CREATE INDEX " + JOURNAL_TABLE_NAME + "_" + KEY_BRAIN + " ON " + JOURNAL_TABLE_NAME + " ("
+            + KEY_BRAIN + ", " + KEY_ID + ");";
+    static final String HISTORY_TABLE_NAME = "history";
+    static final String KEY_MOVES = "moves";
+    static final String KEY_TIME = "time";
+    static final String HISTORY_TABLE_CREATE =
+            "CREATE TABLE " + HISTORY_TABLE_NAME + " ("
+            + KEY_ID + " integer primary key, "
+            + KEY_P1ID + " integer not null references " + BRAINS_TABLE_NAME + "(" + KEY_ID + ") on delete cascade, "
+            + KEY_P2ID + " integer not null references " + BRAINS_TABLE_NAME + "(" + KEY_ID + ") on delete cascade, "
+            + KEY_RESULT + " integer not null, "
+            + KEY_MOVES + " integer not null, "
+            + KEY_TIME + " integer not null);";
+    static final String HISTORY_INDEX_CREATE =
+            "CREATE INDEX " + HISTORY_TABLE_NAME + "_" + KEY_P1ID + "_" + KEY_P2ID + " ON " + HISTORY_TABLE_NAME + " ("
+            + KEY_P1ID + ", " + KEY_P2ID + ", " + KEY_ID + ");";
+    static final String STATS_TABLE_NAME = "stats";
+    static final String KEY_KIND = "kind";
+    static final String KEY_FIRST = "first";
+    static final String KEY_SECOND = "second";
+    static final String KEY_WINS = "wins";
+    static final String KEY_LOSSES = "losses";
+    static final String KEY_DRAWS = "draws";
+    static final String STATS_TABLE_CREATE =
+            "CREATE TABLE " + STATS_TABLE_NAME + " ("
+            + KEY_KIND + " integer not null, "
+            + KEY_FIRST + " integer not null, "
+            + KEY_SECOND + " integer not null, "
+            + KEY_WINS + " integer not null default 0, "
+            + KEY_LOSSES + " integer not null default 0, "
+            + KEY_DRAWS + " integer not null default 0, "
+            + "primary key (" + KEY_KIND + ", " + KEY_FIRST + ", " + KEY_SECOND + "));";
     static final String[] ID_STATE_COLS = new String[]{ KEY_ID, KEY_STATE };
     static final String[] NAME_VALUE_COLS = new String[]{ KEY_NAME, KEY_VALUE };
     static final String[] TALLY_GAME_RESULT_COLS = new String[] { KEY_TALLY, KEY_GAME, KEY_RESULT };
+    static final String[] STATS_COLS = new String[] { KEY_WINS, KEY_LOSSES, KEY_DRAWS };
+    static final String[] LEADERBOARD_COLS = new String[] { KEY_ID, KEY_NAME, KEY_RATING, KEY_GAMES };
 
     public AppDB(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -71,16 +119,22 @@ public class AppDB extends SQLiteOpenHelper {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        Serializer s = TicTacToeApp.serializer();
-        byte[] beanCounterState = s.toBytes(new BeanCounterPlayer());
-        byte[] lmsRankState = s.toBytes(new LMSRankPlayer());
-        byte[] randomState = s.toBytes(new RandomPlayer());
-        byte[] optimalState = s.toBytes(new OptimalPlayer());
+        TicTacToeApp app = TicTacToeApp.app();
+        byte[] beanCounterState = app.toBytes(new BeanCounterPlayer());
+        byte[] lmsRankState = app.toBytes(new LMSRankPlayer());
+        byte[] randomState = app.toBytes(new RandomPlayer());
+        byte[] optimalState = app.toBytes(new OptimalPlayer());
         db.beginTransaction();
         try {
             db.execSQL(BRAINS_TABLE_CREATE);
+            db.execSQL(RATING_INDEX_CREATE);
             db.execSQL(APPSTATE_TABLE_CREATE);
             db.execSQL(GAME_TABLE_CREATE);
+            db.execSQL(JOURNAL_TABLE_CREATE);
+            db.execSQL(JOURNAL_INDEX_CREATE);
+            db.execSQL(HISTORY_TABLE_CREATE);
+            db.execSQL(HISTORY_INDEX_CREATE);
+            db.execSQL(STATS_TABLE_CREATE);
             ContentValues initInsert = new ContentValues();
             initInsert.putNull(KEY_ID);
             initInsert.put(KEY_NAME, "User");
@@ -113,8 +167,7 @@ public class AppDB extends SQLiteOpenHelper {
     }
 
     private void addOptimalPlayer(SQLiteDatabase db) {
-        Serializer s = TicTacToeApp.serializer();
-        byte[] optimalState = s.toBytes(new OptimalPlayer());
+        byte[] optimalState = TicTacToeApp.app().toBytes(new OptimalPlayer());
         ContentValues playerRecord = new ContentValues();
         playerRecord.putNull(KEY_ID);
         playerRecord.put(KEY_NAME, "Optimal");
@@ -163,7 +216,7 @@ public class AppDB extends SQLiteOpenHelper {
                 }
                 break;
             case 4:
-                byte[] lmsRankState = TicTacToeApp.serializer().toBytes(new LMSRankPlayer());
+                byte[] lmsRankState = TicTacToeApp.app().toBytes(new LMSRankPlayer());
                 db.beginTransaction();
                 try {
                     ContentValues initInsert = new ContentValues();
@@ -175,5 +228,38 @@ public class AppDB extends SQLiteOpenHelper {
                     db.endTransaction();
                 }
         }
+        if (oldVersion < 6) {
+            db.beginTransaction();
+            try {
+                db.execSQL(JOURNAL_TABLE_CREATE);
+                db.execSQL(JOURNAL_INDEX_CREATE);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        if (oldVersion < 7) {
+            db.beginTransaction();
+            try {
+                db.execSQL(HISTORY_TABLE_CREATE);
+                db.execSQL(HISTORY_INDEX_CREATE);
+                db.execSQL(STATS_TABLE_CREATE);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        if (oldVersion < 8) {
+            db.beginTransaction();
+            try {
+                db.execSQL("ALTER TABLE " + BRAINS_TABLE_NAME + " ADD COLUMN " + KEY_RATING + " real not null default "
+                        + Ratings.INITIAL + ";");
+                db.execSQL("ALTER TABLE " + BRAINS_TABLE_NAME + " ADD COLUMN " + KEY_GAMES + " integer not null default 0;");
+                db.execSQL(RATING_INDEX_CREATE);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
     }
 }
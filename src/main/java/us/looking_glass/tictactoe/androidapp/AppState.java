@@ -0,0 +1,168 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Typed key-value view of the appstate table. The whole table is read into memory with one scan when the store is
+ * opened, so reads never touch the database. Writes update the cache and are written through with a compiled
+ * statement, immediately or, between {@link #beginBatch()} and {@link #endBatch()}, in a single transaction.
+ * <p/>
+ * The store's lock is held while writing, so don't write to it from inside another open transaction: a thread
+ * waiting for that transaction while holding the lock would deadlock with it.
+ */
+class AppState {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:AppState";
+    private final static Object NULL = new Object();
+    private final static Metrics.Histogram scanTime = Metrics.histogram("db.appstate.scan", "ns");
+    private final static Metrics.Histogram flushTime = Metrics.histogram("db.appstate.flush", "ns");
+
+    private final SQLiteDatabase db;
+    private final Map<String, Object> values = new HashMap<String, Object>();
+    private final Map<String, Object> pending = new LinkedHashMap<String, Object>();
+    private final SQLiteStatement insert;
+    private int batchDepth = 0;
+
+    AppState(SQLiteDatabase db) {
+        this.db = db;
+        insert = db.compileStatement("INSERT INTO " + AppDB.APPSTATE_TABLE_NAME + " (" + AppDB.KEY_NAME + ", "
+                + AppDB.KEY_VALUE + ") VALUES (?, ?);");
+        long start = System.nanoTime();
+        // typeof() because Cursor.getType() isn't available on every supported version.
+        Cursor result = db.rawQuery("SELECT " + AppDB.KEY_NAME + ", " + AppDB.KEY_VALUE + ", typeof(" + AppDB.KEY_VALUE
+                + ") FROM " + AppDB.APPSTATE_TABLE_NAME + ";", null);
+        try {
+            while (result.moveToNext()) {
+                String type = result.getString(2);
+                Object value;
+                if ("integer".equals(type))
+                    value = result.getLong(1);
+                else if ("text".equals(type))
+                    value = result.getString(1);
+                else if ("blob".equals(type))
+                    value = result.getBlob(1);
+                else if ("real".equals(type))
+                    value = result.getDouble(1);
+                else
+                    value = NULL;
+                values.put(result.getString(0), value);
+            }
+        } finally {
+            result.close();
+        }
+        scanTime.recordSince(start);
+        if (debug) Logd("loaded %d entries", values.size());
+    }
+
+    synchronized int getInt(String key, int def) {
+        Object value = values.get(key);
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        if (value instanceof String)
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                return def;
+            }
+        return def;
+    }
+
+    synchronized String getString(String key) {
+        Object value = values.get(key);
+        if (value == null || value == NULL || value instanceof byte[])
+            return null;
+        return value.toString();
+    }
+
+    synchronized byte[] getBlob(String key) {
+        Object value = values.get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    synchronized void put(String key, long value) {
+        putValue(key, value);
+    }
+
+    synchronized void put(String key, String value) {
+        putValue(key, value == null ? NULL : value);
+    }
+
+    synchronized void put(String key, byte[] value) {
+        putValue(key, value == null ? NULL : value);
+    }
+
+    synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    synchronized void endBatch() {
+        if (batchDepth == 0)
+            throw new IllegalStateException("endBatch() without beginBatch()");
+        if (--batchDepth == 0)
+            flush();
+    }
+
+    private void putValue(String key, Object value) {
+        values.put(key, value);
+        pending.put(key, value);
+        if (batchDepth == 0)
+            flush();
+    }
+
+    private void flush() {
+        if (pending.isEmpty())
+            return;
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Object> entry : pending.entrySet()) {
+                Object value = entry.getValue();
+                insert.bindString(1, entry.getKey());
+                if (value instanceof Long)
+                    insert.bindLong(2, (Long) value);
+                else if (value instanceof String)
+                    insert.bindString(2, (String) value);
+                else if (value instanceof byte[])
+                    insert.bindBlob(2, (byte[]) value);
+                else
+                    insert.bindNull(2);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        flushTime.recordSince(start);
+        if (debug) Logd("wrote %d entries", pending.size());
+        pending.clear();
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+}
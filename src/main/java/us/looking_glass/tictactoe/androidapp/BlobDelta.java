@@ -0,0 +1,96 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Binary delta between two versions of a blob: the new length, then runs of replaced bytes, each as the varint gap
+ * since the end of the previous run, the varint run length and the bytes. Runs separated by fewer than
+ * {@link #MERGE_GAP} equal bytes are merged, since a run header costs about as much.
+ */
+final class BlobDelta {
+    private static final int MERGE_GAP = 4;
+
+    private BlobDelta() {
+    }
+
+    static byte[] diff(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, target.length);
+        int common = Math.min(base.length, target.length);
+        int end = 0;
+        int i = 0;
+        while (i < target.length) {
+            if (i < common && base[i] == target[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int last = i;
+            // Extend while the next difference is within MERGE_GAP bytes.
+            for (i++; i < target.length && i - last <= MERGE_GAP; i++)
+                if (i >= common || base[i] != target[i])
+                    last = i;
+            writeVarint(out, start - end);
+            writeVarint(out, last + 1 - start);
+            out.write(target, start, last + 1 - start);
+            end = last + 1;
+            i = end;
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = new int[1];
+        byte[] target = new byte[(int) readVarint(delta, pos)];
+        System.arraycopy(base, 0, target, 0, Math.min(base.length, target.length));
+        int end = 0;
+        while (pos[0] < delta.length) {
+            int start = end + (int) readVarint(delta, pos);
+            int length = (int) readVarint(delta, pos);
+            if (start + length > target.length || pos[0] + length > delta.length)
+                throw new IllegalArgumentException("Corrupt delta");
+            System.arraycopy(delta, pos[0], target, start, length);
+            pos[0] += length;
+            end = start + length;
+        }
+        return target;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (pos[0] == data.length || shift > 63)
+                throw new IllegalArgumentException("Truncated delta");
+            b = data[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
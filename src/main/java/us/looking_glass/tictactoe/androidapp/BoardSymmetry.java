@@ -0,0 +1,92 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+/**
+ * Maps positions to a canonical member of their class under the 8 rotations and reflections of the board. Positions
+ * are base 3 indices as produced by {@link PerfectPlay#index}; the canonical position is the smallest index in the
+ * class. Both the canonical index and the transform that reaches it come from one lookup in a table built at class
+ * initialization, and each canonical position has a dense rank for use as an array index.
+ */
+final class BoardSymmetry {
+    static final int TRANSFORMS = 8;
+    private static final int[] POWERS = new int[] { 1, 3, 9, 27, 81, 243, 729, 2187, 6561 };
+    // CELL_MAP[t][cell] is where transform t moves a cell, cells being x * 3 + y.
+    private static final int[][] CELL_MAP = new int[TRANSFORMS][9];
+    // Canonical index in the low 16 bits, transform above.
+    private static final int[] CANONICAL = new int[PerfectPlay.POSITIONS];
+    private static final short[] RANK = new short[PerfectPlay.POSITIONS];
+    static final int CLASSES;
+
+    static {
+        for (int cell = 0; cell < 9; cell++) {
+            int x = cell / 3, y = cell % 3;
+            int[] targets = new int[] {
+                    x * 3 + y, y * 3 + 2 - x, (2 - x) * 3 + 2 - y, (2 - y) * 3 + x,
+                    (2 - x) * 3 + y, x * 3 + 2 - y, y * 3 + x, (2 - y) * 3 + 2 - x };
+            for (int t = 0; t < TRANSFORMS; t++)
+                CELL_MAP[t][cell] = targets[t];
+        }
+        int classes = 0;
+        for (int index = 0; index < PerfectPlay.POSITIONS; index++) {
+            int best = index;
+            int bestTransform = 0;
+            for (int t = 1; t < TRANSFORMS; t++) {
+                int transformed = apply(index, t);
+                if (transformed < best) {
+                    best = transformed;
+                    bestTransform = t;
+                }
+            }
+            CANONICAL[index] = best | bestTransform << 16;
+            // The canonical index is the smallest of its class, so it is ranked before any other member is seen.
+            RANK[index] = (short) (best == index ? classes++ : -1);
+        }
+        CLASSES = classes;
+    }
+
+    private BoardSymmetry() {
+    }
+
+    /**
+     * @return the index of the position after applying transform {@code t}
+     */
+    static int apply(int index, int t) {
+        int result = 0;
+        for (int cell = 0; cell < 9; cell++, index /= 3)
+            result += index % 3 * POWERS[CELL_MAP[t][cell]];
+        return result;
+    }
+
+    static int canonical(int index) {
+        return CANONICAL[index] & 0xffff;
+    }
+
+    /**
+     * @return the transform that maps the position to its canonical form
+     */
+    static int transform(int index) {
+        return CANONICAL[index] >>> 16;
+    }
+
+    /**
+     * @return the dense rank, 0 to {@link #CLASSES} - 1, of the class of a position
+     */
+    static int rank(int index) {
+        return RANK[CANONICAL[index] & 0xffff];
+    }
+}
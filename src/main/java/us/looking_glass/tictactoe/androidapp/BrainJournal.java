@@ -0,0 +1,151 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only persistence of brain state. A brain's state is its snapshot in the brains table followed by the
+ * {@link BlobDelta}s in the journal table, in order. Saving a brain appends the delta from the last saved state,
+ * so the bytes written follow what changed rather than the size of the brain. Once a brain's journal would outgrow
+ * its snapshot, or after {@code maxEntries} deltas, the save writes a new snapshot and drops the journal instead.
+ * <p/>
+ * The last saved state of every brain read or written is kept in memory as the base for the next delta.
+ * {@link #write} must run inside a transaction on the database writer thread.
+ */
+class BrainJournal {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:BrainJournal";
+    private final static String[] DELTA_COLS = new String[] { AppDB.KEY_DELTA };
+    private final static Metrics.Histogram deltaSize = Metrics.histogram("blob.brain.delta", "bytes");
+    private final static Metrics.Counter compactions = Metrics.counter("brains.compactions");
+
+    private final SQLiteDatabase db;
+    private final int maxEntries;
+    private final Map<Long, Base> bases = new HashMap<Long, Base>();
+
+    BrainJournal(SQLiteDatabase db) {
+        this(db, 256);
+    }
+
+    BrainJournal(SQLiteDatabase db, int maxEntries) {
+        this.db = db;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the current state of a brain, or null if it doesn't exist or has no AI state
+     */
+    byte[] read(long id) {
+        String selector = String.format("_id=%d", id);
+        Cursor result = db.query(AppDB.BRAINS_TABLE_NAME, AppDB.ID_STATE_COLS, selector, null, null, null, null, null);
+        byte[] state;
+        try {
+            if (result.getCount() != 1 || !result.moveToFirst())
+                return null;
+            state = result.getBlob(result.getColumnIndexOrThrow(AppDB.KEY_STATE));
+        } finally {
+            result.close();
+        }
+        if (state == null)
+            return null;
+        int entries = 0;
+        long journalBytes = 0;
+        result = db.query(AppDB.JOURNAL_TABLE_NAME, DELTA_COLS, AppDB.KEY_BRAIN + "=" + id, null, null, null, AppDB.KEY_ID, null);
+        try {
+            while (result.moveToNext()) {
+                byte[] delta = result.getBlob(0);
+                state = BlobDelta.apply(state, delta);
+                entries++;
+                journalBytes += delta.length;
+            }
+        } finally {
+            result.close();
+        }
+        if (debug) Logd("read #%d: %d bytes after %d deltas", id, state.length, entries);
+        synchronized (bases) {
+            // A base set by a write is at least as recent as what was just read.
+            if (!bases.containsKey(id))
+                bases.put(id, new Base(state, entries, journalBytes));
+        }
+        return state;
+    }
+
+    void write(long id, byte[] state) {
+        Base base;
+        synchronized (bases) {
+            base = bases.get(id);
+        }
+        if (base != null) {
+            byte[] delta = BlobDelta.diff(base.state, state);
+            if (base.entries < maxEntries && base.journalBytes + delta.length <= state.length) {
+                ContentValues values = new ContentValues();
+                values.put(AppDB.KEY_BRAIN, id);
+                values.put(AppDB.KEY_DELTA, delta);
+                db.insert(AppDB.JOURNAL_TABLE_NAME, null, values);
+                deltaSize.record(delta.length);
+                synchronized (bases) {
+                    bases.put(id, new Base(state, base.entries + 1, base.journalBytes + delta.length));
+                }
+                if (debug) Logd("write #%d: %d byte delta", id, delta.length);
+                return;
+            }
+        }
+        ContentValues update = new ContentValues();
+        update.put(AppDB.KEY_STATE, state);
+        db.update(AppDB.BRAINS_TABLE_NAME, update, String.format("_id=%d", id), null);
+        db.delete(AppDB.JOURNAL_TABLE_NAME, AppDB.KEY_BRAIN + "=" + id, null);
+        compactions.increment();
+        synchronized (bases) {
+            bases.put(id, new Base(state, 0, 0));
+        }
+        if (debug) Logd("write #%d: %d byte snapshot", id, state.length);
+    }
+
+    /**
+     * Drops the base of a brain whose write was rolled back, so the next write is a full snapshot.
+     */
+    void forget(long id) {
+        synchronized (bases) {
+            bases.remove(id);
+        }
+    }
+
+    private static class Base {
+        final byte[] state;
+        final int entries;
+        final long journalBytes;
+
+        Base(byte[] state, int entries, long journalBytes) {
+            this.state = state;
+            this.entries = entries;
+            this.journalBytes = journalBytes;
+        }
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.os.Handler;
+import android.util.Log;
+import us.looking_glass.tictactoe.Player;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Write-behind persistence for learning brains. The thread that plays games marks brains dirty after each game; a
+ * dirty brain is serialized once per flush no matter how many games it played, and the resulting blobs are written
+ * in one transaction on the app's database writer thread. A flush happens when {@code maxPending} games have
+ * accumulated, {@code maxDelay} ms after the first unsaved game, or when {@link #flush()} is called.
+ * <p/>
+ * All methods except the writer task must be called on the owner thread, the only thread that mutates the brains,
+ * so serialization never sees a brain in the middle of a game. While the owner lends the brains to another thread it
+ * {@link #hold}s the persister, and flushes requested in the meantime happen on release. Threads that play with a
+ * brain without the owner's knowledge must hold its lock for each game; serialization takes it too. An instance the
+ * player cache has replaced, as a finished training run does, is no longer saved, so it can't overwrite the state
+ * of its replacement.
+ */
+class BrainPersister {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:BrainPersister";
+    private final static Metrics.Histogram serializeTime = Metrics.histogram("serialize.brain", "ns");
+    private final static Metrics.Histogram blobSize = Metrics.histogram("blob.brain", "bytes");
+    private final static Metrics.Histogram writeTime = Metrics.histogram("db.writeBrains", "ns");
+    private final static Metrics.Counter coalescedGames = Metrics.counter("brains.coalescedGames");
+    private final static Metrics.Counter staleBrains = Metrics.counter("brains.staleSkipped");
+
+    private final TicTacToeApp app;
+    private final Handler owner;
+    private final int maxPending;
+    private final long maxDelay;
+    private final Map<Player, Long> dirty = new IdentityHashMap<Player, Long>();
+    private int pendingGames = 0;
+    private boolean held = false;
+    private boolean flushRequested = false;
+    // Blobs waiting for the writer; a later flush replaces the blob of a brain that is still queued.
+    private final Map<Long, PendingWrite> pendingWrites = new LinkedHashMap<Long, PendingWrite>();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    BrainPersister(TicTacToeApp app, Handler owner) {
+        this(app, owner, 50, 5000);
+    }
+
+    BrainPersister(TicTacToeApp app, Handler owner, int maxPending, long maxDelay) {
+        this.app = app;
+        this.owner = owner;
+        this.maxPending = maxPending;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Marks a brain that played in the game just finished; {@link #gameFinished()} then counts the game.
+     */
+    void markDirty(Player player) {
+        if (player == null || !player.saveable())
+            return;
+        if (!dirty.containsKey(player))
+            dirty.put(player, app.getPlayerID(player));
+    }
+
+    /**
+     * Counts a finished game toward the flush thresholds, once for the game however many brains played in it.
+     */
+    void gameFinished() {
+        if (dirty.isEmpty())
+            return;
+        if (pendingGames++ == 0)
+            owner.postDelayed(flushTask, maxDelay);
+        if (pendingGames >= maxPending)
+            flush();
+    }
+
+    void hold(boolean held) {
+        this.held = held;
+        if (!held && flushRequested)
+            flush();
+    }
+
+    /**
+     * Serializes all dirty brains and queues them for writing.
+     *
+     * @return a future that completes once the blobs are committed; waiting on it makes the save durable
+     */
+    Future<?> flush() {
+        owner.removeCallbacks(flushTask);
+        if (held) {
+            flushRequested = true;
+            // Still commits blobs already serialized.
+            return app.dbWriter().submit(writeTask);
+        }
+        flushRequested = false;
+        if (debug) Logd("flush: %d brains, %d games", dirty.size(), pendingGames);
+        if (!dirty.isEmpty()) {
+            synchronized (pendingWrites) {
+                for (Map.Entry<Player, Long> entry : dirty.entrySet()) {
+                    if (!app.players.isCurrent(entry.getValue(), entry.getKey())) {
+                        staleBrains.increment();
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    byte[] state;
+                    // Games played off the owner thread hold the brain's lock, as the trainer and session manager do.
+                    synchronized (entry.getKey()) {
+                        state = app.toBytes(entry.getKey());
+                    }
+                    serializeTime.recordSince(start);
+                    blobSize.record(state.length);
+                    pendingWrites.put(entry.getValue(), new PendingWrite(entry.getKey(), state));
+                }
+            }
+            dirty.clear();
+        }
+        if (pendingGames > 1)
+            coalescedGames.add(pendingGames - 1);
+        pendingGames = 0;
+        return app.dbWriter().submit(writeTask);
+    }
+
+    private void write() {
+        Map<Long, PendingWrite> batch;
+        synchronized (pendingWrites) {
+            if (pendingWrites.isEmpty())
+                return;
+            batch = new LinkedHashMap<Long, PendingWrite>(pendingWrites);
+            pendingWrites.clear();
+        }
+        long start = System.nanoTime();
+        RecordStore.Batch records = new RecordStore.Batch();
+        for (Map.Entry<Long, PendingWrite> entry : batch.entrySet()) {
+            // Replaced since it was serialized; the replacement was written before this batch.
+            if (!app.players.isCurrent(entry.getKey(), entry.getValue().player)) {
+                staleBrains.increment();
+                continue;
+            }
+            records.brain(entry.getKey(), entry.getValue().state);
+        }
+        try {
+            app.records.write(records);
+        } catch (IOException e) {
+            requeue(batch, e);
+            throw new RuntimeException("Error writing brains", e);
+        } catch (RuntimeException e) {
+            requeue(batch, e);
+            throw e;
+        }
+        writeTime.recordSince(start);
+        if (debug) Logd("wrote %d brains", batch.size());
+    }
+
+    /**
+     * Requeues what of a failed write hasn't been superseded, so the next flush retries it.
+     */
+    private void requeue(Map<Long, PendingWrite> batch, Exception e) {
+        Log.e(TAG, "Error writing brains", e);
+        synchronized (pendingWrites) {
+            for (Map.Entry<Long, PendingWrite> entry : batch.entrySet())
+                if (!pendingWrites.containsKey(entry.getKey()))
+                    pendingWrites.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+
+    private static class PendingWrite {
+        // Keeps the brain strongly reachable until its blob is committed, so the player cache can't drop it and
+        // reload the previous state from the database in the meantime.
+        final Player player;
+        final byte[] state;
+
+        PendingWrite(Player player, byte[] state) {
+            this.player = player;
+            this.state = state;
+        }
+    }
+}
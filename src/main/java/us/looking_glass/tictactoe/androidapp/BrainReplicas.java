@@ -0,0 +1,225 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lets several threads learn with one brain without sharing it. Each thread plays on its own {@link Replica}, a copy
+ * of the master brain and its opponent deserialized from the master's last published state, and records the moves
+ * of every game. Every {@code mergeGames} games the replica's games are merged into the master by replaying their
+ * moves on it, under the master's lock, after which the replica starts over from the master's new state. The master
+ * thus learns from every game played by any replica, one game at a time, while the games themselves, search
+ * included, run in parallel; only the replays, which make no search, and the refreshes are serialized.
+ * <p/>
+ * Replaying teaches the master what playing the game would have, provided a brain learns from the moves of a finished
+ * game rather than from state kept during its own search. A replica plays up to {@code mergeGames} games with
+ * a brain that hasn't learned from the other replicas' latest games yet; the smaller the interval, the closer this
+ * comes to training on one thread. Whether a brain's class learns this way is checked by {@link #learnsFromReplay};
+ * callers train any other brain on one thread, under its lock.
+ * <p/>
+ * The serializer is locked for each use, after the master's lock if that is held.
+ */
+public class BrainReplicas {
+    private final static Metrics.Counter merges = Metrics.counter("train.merges");
+    private final static Metrics.Histogram mergeTime = Metrics.histogram("train.merge", "ns");
+    private final static Metrics.Histogram refreshTime = Metrics.histogram("train.refresh", "ns");
+    private final static int CHECK_GAMES = 32;
+    // By class, whether replaying a brain's games teaches it what playing them did.
+    private final static Map<Class<?>, Boolean> replayChecked = new HashMap<Class<?>, Boolean>();
+
+    private final Serializer serializer;
+    private final Player master;
+    private final Player opponent;
+    private final int mergeGames;
+    // Bumped by every merge; the published state is serialized again the first time a replica asks after one.
+    private long version = 0;
+    private long publishedVersion = -1;
+    private byte[][] published;
+
+    /**
+     * @param opponent the master's opponent, which learns from the replays as well; may be the master itself
+     */
+    public BrainReplicas(Serializer serializer, Player master, Player opponent, int mergeGames) {
+        if (mergeGames < 1)
+            throw new IllegalArgumentException("Invalid merge interval: " + mergeGames);
+        this.serializer = serializer;
+        this.master = master;
+        this.opponent = opponent;
+        this.mergeGames = mergeGames;
+    }
+
+    /**
+     * @return a new replica, for use by one thread
+     */
+    public Replica replica() {
+        Replica result = new Replica();
+        result.refresh();
+        return result;
+    }
+
+    /**
+     * @return the number of merges so far
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Checks, once per class, that replaying a brain's games leaves it in the state that playing them did: two copies
+     * of {@code brain} start from its state, one plays {@value #CHECK_GAMES} games against itself and the other
+     * replays their moves, and their serialized states must match. A brain that also learns from its own search, or
+     * whose state isn't serialized, fails the check.
+     */
+    public static boolean learnsFromReplay(Serializer serializer, Player brain) {
+        Class<?> type = brain.getClass();
+        synchronized (replayChecked) {
+            Boolean known = replayChecked.get(type);
+            if (known != null)
+                return known;
+        }
+        boolean result = checkReplay(serializer, brain);
+        synchronized (replayChecked) {
+            replayChecked.put(type, result);
+        }
+        return result;
+    }
+
+    private static boolean checkReplay(Serializer serializer, Player brain) {
+        Player played;
+        Player replayed;
+        synchronized (brain) {
+            synchronized (serializer) {
+                byte[] state = serializer.toBytes(brain);
+                played = (Player) serializer.fromBytes(state);
+                replayed = (Player) serializer.fromBytes(state);
+            }
+        }
+        ReplayLog.PrngUse prng = ReplayLog.usePrng();
+        try {
+            for (int i = 0; i < CHECK_GAMES; i++) {
+                Game game = new Game(played, played);
+                long moves = 0;
+                while (game.status() == Game.PLAYING) {
+                    game.run(1);
+                    moves = PackedMoves.append(moves, game.board());
+                }
+                replay(new Game(replayed, replayed), moves);
+            }
+        } finally {
+            prng.close();
+        }
+        synchronized (serializer) {
+            return Arrays.equals(serializer.toBytes(played), serializer.toBytes(replayed));
+        }
+    }
+
+    /**
+     * Plays the moves of a game, packed as by {@link PackedMoves}, in {@code game}.
+     */
+    static void replay(Game game, long moves) {
+        for (int j = 0; j < 9 && game.status() == Game.PLAYING; j++) {
+            int cell = (int) (moves >>> (j * 4) & 0xf) - 1;
+            if (cell < 0)
+                break;
+            game.play(cell / 3, cell % 3, game.getCurrentPlayer());
+        }
+    }
+
+    private void merge(long[] moves, boolean[] masterFirst, int count) {
+        long start = System.nanoTime();
+        synchronized (master) {
+            for (int i = 0; i < count; i++)
+                replay(masterFirst[i] ? new Game(master, opponent) : new Game(opponent, master), moves[i]);
+            synchronized (this) {
+                version++;
+            }
+        }
+        merges.increment();
+        mergeTime.recordSince(start);
+    }
+
+    private byte[][] published() {
+        synchronized (master) {
+            synchronized (this) {
+                if (publishedVersion != version) {
+                    synchronized (serializer) {
+                        published = new byte[][] { serializer.toBytes(master),
+                                opponent == master ? null : serializer.toBytes(opponent) };
+                    }
+                    publishedVersion = version;
+                }
+                return published;
+            }
+        }
+    }
+
+    public class Replica {
+        private final long[] moves = new long[mergeGames];
+        private final boolean[] masterFirst = new boolean[mergeGames];
+        private int count = 0;
+        private Player brain;
+        private Player opponent;
+
+        public Player brain() {
+            return brain;
+        }
+
+        public Player opponent() {
+            return opponent;
+        }
+
+        /**
+         * Records a finished game of the replica, merging once the interval is full.
+         *
+         * @param moves the game's moves, packed as by {@link PackedMoves}
+         */
+        public void played(long moves, boolean brainFirst) {
+            this.moves[count] = moves;
+            masterFirst[count++] = brainFirst;
+            if (count == mergeGames)
+                merge();
+        }
+
+        /**
+         * Merges the games recorded so far and starts over from the master's state.
+         */
+        public void merge() {
+            if (count == 0)
+                return;
+            BrainReplicas.this.merge(moves, masterFirst, count);
+            count = 0;
+            refresh();
+        }
+
+        private void refresh() {
+            long start = System.nanoTime();
+            byte[][] state = published();
+            synchronized (serializer) {
+                brain = (Player) serializer.fromBytes(state[0]);
+                opponent = state[1] == null ? brain : (Player) serializer.fromBytes(state[1]);
+            }
+            refreshTime.recordSince(start);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.os.Handler;
+
+/**
+ * Latest-value channel from a background thread to the UI thread. Setters only record the new value; at most one
+ * frame is pending on the UI handler at a time, and it shows whatever values are current when it runs, so fast play
+ * never queues stale intermediate states. The channel is its own Runnable, so updates don't allocate.
+ * <p/>
+ * Each value is passed to the sink only when it was set since the previous frame.
+ */
+class DisplayChannel implements Runnable {
+    private final static int BOARD = 1;
+    private final static int TALLY = 2;
+    private final static int INPUT = 4;
+
+    interface Sink {
+        void showBoard(int board);
+        void showTally(CharSequence tally);
+        void showInput(int state, int waitingPlayer);
+    }
+
+    private final Handler target;
+    private final Sink sink;
+    private final Metrics.Counter frames;
+    private final Metrics.Counter coalesced;
+    private final Metrics.Counter droppedBoards;
+    // Guarded by this; changed holds the values set since the last frame.
+    private int changed = 0;
+    private int board;
+    private CharSequence tally;
+    private int inputState;
+    private int waitingPlayer;
+
+    DisplayChannel(String name, Handler target, Sink sink) {
+        this.target = target;
+        this.sink = sink;
+        frames = Metrics.counter("ui." + name + ".frames");
+        coalesced = Metrics.counter("ui." + name + ".coalesced");
+        droppedBoards = Metrics.counter("ui." + name + ".droppedBoards");
+    }
+
+    synchronized void board(int board) {
+        if ((changed & BOARD) != 0 && this.board != board)
+            droppedBoards.increment();
+        this.board = board;
+        publish(BOARD);
+    }
+
+    synchronized void tally(CharSequence tally) {
+        this.tally = tally;
+        publish(TALLY);
+    }
+
+    synchronized void input(int state, int waitingPlayer) {
+        this.inputState = state;
+        this.waitingPlayer = waitingPlayer;
+        publish(INPUT);
+    }
+
+    private void publish(int value) {
+        if (changed == 0)
+            target.post(this);
+        else
+            coalesced.increment();
+        changed |= value;
+    }
+
+    @Override
+    public void run() {
+        int shown;
+        int board;
+        CharSequence tally;
+        int inputState;
+        int waitingPlayer;
+        synchronized (this) {
+            shown = changed;
+            changed = 0;
+            board = this.board;
+            tally = this.tally;
+            inputState = this.inputState;
+            waitingPlayer = this.waitingPlayer;
+        }
+        if ((shown & BOARD) != 0)
+            sink.showBoard(board);
+        if ((shown & TALLY) != 0)
+            sink.showTally(tally);
+        if ((shown & INPUT) != 0)
+            sink.showInput(inputState, waitingPlayer);
+        frames.increment();
+    }
+}
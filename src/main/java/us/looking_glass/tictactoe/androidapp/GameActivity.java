@@ -16,8 +16,8 @@
 
 package us.looking_glass.tictactoe.androidapp;
 
+import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.ContentValues;
 import android.content.res.Configuration;
 import android.database.Cursor;
 import android.os.*;
@@ -31,22 +31,25 @@ import android.widget.*;
 import us.looking_glass.spotlight.Script;
 import us.looking_glass.spotlight.actor.ViewActor;
 import us.looking_glass.tictactoe.Board;
-import us.looking_glass.tictactoe.Game;
 import us.looking_glass.tictactoe.Player;
 import us.looking_glass.tictactoe.Point;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.*;
 
 public class GameActivity extends ActionBarActivity implements AdapterView.OnItemSelectedListener {
     private TicTacToeApp app = null;
     private Script script = null;
 
-    private final static int WAIT_IGNORE = 0;
-    private final static int WAIT_MOVE = 1;
-    private final static int WAIT_TAP = 2;
     final static boolean debug = false;
     private final static String TAG="TicTacToe:GameActivity";
     private LinearLayout topLayout;
@@ -63,8 +66,32 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
     GameBGThread bgThread = null;
     volatile MessageHandler bgHandler = null;
     volatile MessageHandler handler = null;
-    CyclicBarrier saveBarrier = new CyclicBarrier(2);
-    private CharSequence aboutText;
+    DisplayChannel display = null;
+    // How long onPause waits for the state to be committed. A save still running after that completes in the
+    // background, and is lost only if the process is killed first.
+    private final static long SAVE_DEADLINE_MS = 200;
+    private final static long EVALUATION_GAMES = 10000;
+    private final static int LEADERBOARD_SIZE = 5;
+    private final static long TRAINING_GAMES = 20000;
+    // The evaluation or training run started from the menu; there is at most one at a time.
+    private static Thread backgroundRun = null;
+    private final static Metrics.Histogram[] messageTimes = new Metrics.Histogram[] {
+            Metrics.histogram("game.PLAY_MOVE", "ns"),
+            Metrics.histogram("game.PLAY_TAP", "ns"),
+            Metrics.histogram("game.SET_PLAYER", "ns"),
+            Metrics.histogram("game.SAVE_STATE", "ns"),
+            Metrics.histogram("game.SET_SEED", "ns") };
+    private final static Metrics.Histogram pauseTime = Metrics.histogram("ui.onPause", "ns");
+    // Size at which the replay log is moved aside to replay.log.old when the game thread starts.
+    private final static long MAX_REPLAY_LOG = 1 << 20;
+    private final static Metrics.Histogram createTime = Metrics.histogram("startup.onCreate", "ns");
+    private final static Metrics.Histogram stateTime = Metrics.histogram("startup.state", "ns");
+    private final static Metrics.Histogram brainsQueryTime = Metrics.histogram("startup.brainsQuery", "ns");
+    private final static Metrics.Histogram loadBrainsTime = Metrics.histogram("startup.loadBrains", "ns");
+    private final static Metrics.Histogram restoreStageTime = Metrics.histogram("startup.restore", "ns");
+    private final static Metrics.Histogram interactiveTime = Metrics.histogram("startup.interactive", "ns");
+    private long createStart;
+    private CharSequence aboutText = null;
     private String aboutVersionText = null;
 
     /**
@@ -72,6 +99,7 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
      */
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        createStart = System.nanoTime();
         app = TicTacToeApp.app();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
@@ -79,6 +107,25 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
         gameView = (GameView) findViewById(R.id.gameView);
         tallyView = (TextView) findViewById(R.id.tallyView);
         handler = new UIHandler();
+        display = new DisplayChannel("game", handler, new DisplayChannel.Sink() {
+            @Override
+            public void showBoard(int board) {
+                if (debug) Logv("showBoard: %s", Board.toString(board));
+                gameView.setContents(board);
+            }
+
+            @Override
+            public void showTally(CharSequence tally) {
+                tallyView.setText(tally);
+            }
+
+            @Override
+            public void showInput(int state, int waitingPlayer) {
+                if (debug) Logv("showInput: %d %d", state, waitingPlayer);
+                awaitingInput = state;
+                updateWaiting(waitingPlayer);
+            }
+        });
         playerSelect[0] = (Spinner) findViewById(R.id.P1Select);
         playerSelect[1] = (Spinner) findViewById(R.id.P2Select);
         playerColorBars[0] = findViewById(R.id.P1color);
@@ -86,14 +133,15 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
         setOrientation(getResources().getConfiguration().orientation);
         bgThread = new GameBGThread("TicTacToeBG");
         bgThread.start();
-        String aboutTextString = getString(R.string.about_text);
-        aboutText = Html.fromHtml(aboutTextString);
-        try {
-            aboutVersionText = "v" + getPackageManager().getPackageInfo(this.getPackageName(), 0).versionName;
-         } catch (Exception e) {
-            Log.e(TAG, "Failed to retrieve package version", e);
-            aboutVersionText = "vUnknown";
-        }
+        // The about text and the help script are built when first shown.
+        createTime.recordSince(createStart);
+        if (debug) Logd("GameActivity onCreate");
+    }
+
+    private Script script() {
+        if (script != null)
+            return script;
+        long start = System.nanoTime();
         script = new Script(this);
         script.getBuilder()
             .setDefaultTransition(Script.FADE)
@@ -126,7 +174,8 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
             )
             .add()
             .end();
-        if (debug) Logd("GameActivity onCreate");
+        if (debug) Logd("help script built in %dms", (System.nanoTime() - start) / 1000000);
+        return script;
     }
 
     private void setOrientation(int orientation) {
@@ -147,24 +196,20 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
     public void onPause() {
         super.onPause();
         if (debug) Logd("onPause state save start");
-        long time;
-        Exception failure = null;
-        if (debug)
-            time = -System.currentTimeMillis();
-        bgHandler.sendEmptyMessage(GameBGThread.GameHandler.SAVE_STATE);
-        try {
-            saveBarrier.await();
-        } catch (InterruptedException e) {
-            failure = e;
-        } catch (BrokenBarrierException e) {
-            failure = e;
-        }
-        if (failure != null)
-            Log.e(TAG, "Error during onPause", failure);
-        if (debug) {
-            time += System.currentTimeMillis();
-            Logd("onPause state save completed in %dms", time);
+        long requested = System.nanoTime();
+        // Saves brains and the state, ahead of queued moves; the latch opens once that save is committed.
+        if (bgHandler != null) {
+            CountDownLatch saved = new CountDownLatch(1);
+            bgHandler.sendMessageAtFrontOfQueue(bgHandler.obtainMessage(GameBGThread.GameHandler.SAVE_STATE, saved));
+            try {
+                if (!saved.await(SAVE_DEADLINE_MS, TimeUnit.MILLISECONDS))
+                    Log.w(TAG, String.format("State save not committed within %dms", SAVE_DEADLINE_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        pauseTime.recordSince(requested);
+        if (debug) Logd("onPause returned after %dms", (System.nanoTime() - requested) / 1000000);
     }
 
     private class BoardGesturedHandler extends GestureDetector.SimpleOnGestureListener implements View.OnTouchListener {
@@ -178,18 +223,18 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
         @Override
         public boolean onSingleTapConfirmed(MotionEvent e) {
             switch (awaitingInput) {
-                case WAIT_MOVE:
+                case GameSession.WAIT_MOVE:
                     int x, y;
                     x = gameView.resolveBoardCoordinates(e.getX(), e.getY());
                     y = Point.y(x);
                     x = Point.x(x);
                     if (debug) Logv("Board touch: %d %d", x, y);
                     bgHandler.sendMessage(GameBGThread.GameHandler.PLAY_MOVE, x, y, null);
-                    awaitingInput = WAIT_IGNORE;
+                    awaitingInput = GameSession.WAIT_IGNORE;
                     break;
-                case WAIT_TAP:
+                case GameSession.WAIT_TAP:
                     bgHandler.sendEmptyMessage(GameBGThread.GameHandler.PLAY_TAP);
-                    awaitingInput = WAIT_IGNORE;
+                    awaitingInput = GameSession.WAIT_IGNORE;
                     break;
             }
             return false;
@@ -220,6 +265,7 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.game_activity_actions, menu);
+        menu.findItem(R.id.action_metrics).setVisible(BuildConfig.DEBUG);
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -232,14 +278,275 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
                 return true;
             case R.id.action_help:
                 if (debug) Logv("reshow help");
-                script.show(true);
+                script().show(true);
+                return true;
+            case R.id.action_metrics:
+                dumpMetrics();
+                return true;
+            case R.id.action_evaluate:
+                evaluateMatchup();
+                return true;
+            case R.id.action_train:
+                trainPlayer();
+                return true;
+            case R.id.action_statistics:
+                showStatistics();
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    /**
+     * Plays {@link #EVALUATION_GAMES} games of the selected matchup with a {@link MatchEngine} on a thread of its
+     * own, reporting progress in toasts. The results go to the ratings, and through the session into the matchup's
+     * tally.
+     */
+    void evaluateMatchup() {
+        if (bgHandler == null)
+            return;
+        bgHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long[] selected = bgThread.session.selectedPlayers();
+                startBackgroundRun("TicTacToeEvaluate", new Runnable() {
+                    @Override
+                    public void run() {
+                        final MatchEngine engine = new MatchEngine(app, selected[0], selected[1]).setWriteTally(false);
+                        final long[] added = new long[3];
+                        toast(getString(R.string.evaluation_started, EVALUATION_GAMES));
+                        try {
+                            engine.run(EVALUATION_GAMES, new MatchEngine.Listener() {
+                                @Override
+                                public void onProgress(long played, long[] tally, double gamesPerSecond) {
+                                    addResults(tally);
+                                }
+
+                                @Override
+                                public void onComplete(long played, long[] tally, double gamesPerSecond) {
+                                    addResults(tally);
+                                    toast(getString(R.string.evaluation_done, played, tally[0], tally[1], tally[2], gamesPerSecond));
+                                }
+
+                                private void addResults(long[] tally) {
+                                    final long[] results = new long[3];
+                                    for (int i = 0; i < 3; i++) {
+                                        results[i] = tally[i] - added[i];
+                                        added[i] = tally[i];
+                                    }
+                                    bgHandler.post(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            bgThread.session.addResults(selected[0], selected[1], results);
+                                        }
+                                    });
+                                }
+                            });
+                        } catch (IllegalArgumentException e) {
+                            toast(getString(R.string.evaluation_needs_ai));
+                        } catch (InterruptedException e) {
+                            engine.cancel();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Trains player 1's brain against player 2's for {@link #TRAINING_GAMES} games with a {@link Trainer} on a
+     * thread of its own, reporting the outcome in toasts. The session picks the trained brain up at its next game.
+     */
+    void trainPlayer() {
+        if (bgHandler == null)
+            return;
+        bgHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long[] selected = bgThread.session.selectedPlayers();
+                // Trains from the brain's latest state, games played up to now included.
+                bgThread.session.save();
+                startBackgroundRun("TicTacToeTrain", new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            app.dbWriter().submit(new Runnable() {
+                                @Override
+                                public void run() {
+                                }
+                            }).get();
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error waiting for pending writes", e);
+                        }
+                        Player trainee = app.getPlayer(selected[0]);
+                        if (trainee == null || !trainee.saveable() || app.getPlayer(selected[1]) == null) {
+                            toast(getString(R.string.training_needs_ai));
+                            return;
+                        }
+                        if (!BrainReplicas.learnsFromReplay(app.serializer, trainee)) {
+                            toast(getString(R.string.training_needs_replay));
+                            return;
+                        }
+                        final Trainer trainer = new Trainer(app, selected[0], selected[1])
+                                .setCheckpointStore(app.bulkRecords())
+                                .setOwner(new Executor() {
+                                    @Override
+                                    public void execute(final Runnable command) {
+                                        // The session's own AI move finishes first; with the thread gone, nothing
+                                        // else plays the brain.
+                                        boolean posted = bgHandler != null && bgHandler.post(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                bgThread.session.whenIdle(command);
+                                            }
+                                        });
+                                        if (!posted)
+                                            command.run();
+                                    }
+                                });
+                        toast(getString(R.string.training_started, TRAINING_GAMES));
+                        try {
+                            trainer.run(TRAINING_GAMES, 0, new Trainer.Listener() {
+                                @Override
+                                public void onProgress(long played, long[] results, double gamesPerSecond) {
+                                }
+
+                                @Override
+                                public void onComplete(long played, long[] results, double gamesPerSecond) {
+                                    toast(getString(R.string.training_done, played, results[0], results[1], results[2], gamesPerSecond));
+                                }
+                            });
+                        } catch (IllegalArgumentException e) {
+                            toast(getString(R.string.training_needs_ai));
+                        } catch (InterruptedException e) {
+                            trainer.cancel();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Shows the recorded results of the selected matchup, of both its brains and of each opening move, and the
+     * {@link #LEADERBOARD_SIZE} best rated brains. The games buffered so far are written first, and the stats read
+     * after them on the database writer thread.
+     */
+    void showStatistics() {
+        if (bgHandler == null)
+            return;
+        bgHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long[] selected = bgThread.session.selectedPlayers();
+                final GameHistory history = bgThread.history;
+                history.flush();
+                app.dbWriter().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        StringBuilder text = new StringBuilder();
+                        long[] stats = history.stats(GameHistory.STATS_MATCHUP, selected[0], selected[1]);
+                        text.append(getString(R.string.statistics_matchup, stats[0], stats[1], stats[2]));
+                        for (int i = 0; i < 2; i++) {
+                            if (i == 1 && selected[1] == selected[0])
+                                break;
+                            stats = history.stats(GameHistory.STATS_BRAIN, selected[i], 0);
+                            text.append('\n').append(getString(R.string.statistics_brain, brainName(selected[i]), stats[0], stats[1], stats[2]));
+                        }
+                        for (int cell = 0; cell < 9; cell++) {
+                            stats = history.stats(GameHistory.STATS_OPENING, cell, 0);
+                            if (stats[0] + stats[1] + stats[2] > 0)
+                                text.append('\n').append(getString(R.string.statistics_opening, cell / 3 + 1, cell % 3 + 1, stats[0], stats[1], stats[2]));
+                        }
+                        List<Ratings.Entry> leaders = app.ratings.leaderboard(LEADERBOARD_SIZE);
+                        if (!leaders.isEmpty())
+                            text.append('\n').append(getString(R.string.statistics_leaderboard));
+                        for (int i = 0; i < leaders.size(); i++) {
+                            Ratings.Entry entry = leaders.get(i);
+                            text.append('\n').append(getString(R.string.statistics_rating, i + 1, entry.name, entry.rating, entry.games));
+                        }
+                        handler.sendMessage(UIHandler.SHOW_TEXT, 0, 0, text.toString());
+                    }
+                });
+            }
+        });
+    }
+
+    private String brainName(long id) {
+        Cursor cursor = app.db.query(AppDB.BRAINS_TABLE_NAME, new String[] { AppDB.KEY_NAME },
+                AppDB.KEY_ID + "=" + id, null, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : "#" + id;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Starts an evaluation or training run, unless one is already in progress.
+     */
+    private void startBackgroundRun(String name, final Runnable run) {
+        synchronized (GameActivity.class) {
+            if (backgroundRun != null && backgroundRun.isAlive()) {
+                toast(getString(R.string.background_run_busy));
+                return;
+            }
+            backgroundRun = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        run.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Background run failed", e);
+                        toast(getString(R.string.background_run_failed));
+                    }
+                }
+            }, name);
+            backgroundRun.setPriority(Thread.MIN_PRIORITY);
+            backgroundRun.start();
+        }
+    }
+
+    private void toast(String text) {
+        handler.sendMessage(UIHandler.SHOW_TOAST, 0, 0, text);
+    }
+
+    /**
+     * Writes all metrics to logcat and to metrics.txt in the app's files directory, on the database writer thread.
+     */
+    void dumpMetrics() {
+        final File file = new File(getFilesDir(), "metrics.txt");
+        app.dbWriter().execute(new Runnable() {
+            @Override
+            public void run() {
+                StringWriter text = new StringWriter();
+                Metrics.dump(new PrintWriter(text));
+                for (String line : text.toString().split("\n"))
+                    Log.i(TAG, line);
+                try {
+                    PrintWriter out = new PrintWriter(new FileWriter(file));
+                    try {
+                        out.print(text);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write " + file, e);
+                }
+            }
+        });
+    }
+
     void openAboutPopup () {
+        if (aboutText == null) {
+            aboutText = Html.fromHtml(getString(R.string.about_text));
+            try {
+                aboutVersionText = "v" + getPackageManager().getPackageInfo(this.getPackageName(), 0).versionName;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to retrieve package version", e);
+                aboutVersionText = "vUnknown";
+            }
+        }
         final Dialog aboutPopup = new Dialog(this);
         View aboutWindowView = getLayoutInflater().inflate(R.layout.aboutpopup, null);
         TextView aboutTextView = (TextView) aboutWindowView.findViewById(R.id.aboutTextView);
@@ -270,83 +577,69 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
 
             @Override
             public void handleMessage(Message msg) {
-                String tallyUpdate = null;
+                long start = System.nanoTime();
                 switch (msg.what) {
                     case PLAY_MOVE:
-                        int x = msg.arg1;
-                        int y = msg.arg2;
-                        if (debug) Logv("PLAY_MOVE: %d, %d", x, y);
-                        if (Board.get(game.board(), msg.arg1, msg.arg2) == 0) {
-                            game.play(x, y, game.getCurrentPlayer());
-                            if (game.status() == Game.PLAYING && game.getPlayer() != null)
-                                game.run(1);
-                            if (game.status() != Game.PLAYING) {
-                                savePlayers();
-                                lastResult = game.status();
-                                tally[lastResult == Game.P1_WIN ? 0 : lastResult == Game.P2_WIN ? 1 : 2]++;
-                                tallyUpdate = formatResults();
-                            }
-                            sendUpdate(tallyUpdate);
-                        }
-                        sendSetInput();
+                        if (debug) Logv("PLAY_MOVE: %d, %d", msg.arg1, msg.arg2);
+                        session.playMove(msg.arg1, msg.arg2);
                         break;
                     case PLAY_TAP:
                         if (debug) Logv("PLAY_TAP");
-                        if (game.status() == Game.PLAYING) {
-                            game.run(1);
-                            if (game.status() != Game.PLAYING) {
-                                savePlayers();
-                                lastResult = game.status();
-                                tally[lastResult == Game.P1_WIN ? 0 : lastResult == Game.P2_WIN ? 1 : 2]++;
-                                tallyUpdate = formatResults();
-                            }
-                            sendUpdate(tallyUpdate);
-                            sendSetInput();
-                        } else newGame();
+                        session.tap();
                         break;
                     case SET_PLAYER:
-                        int which = msg.arg1;
-                        int index = msg.arg2;
-                        if (debug) Logv("SET_PLAYER: P%d->#%d%s", which+1, index, selectedPlayers[which] == index ? " IGNORED": "");
-                        if (selectedPlayers[which] == index)
-                            break;
-                        if (debug) Logd("change player %d to %d", which, index);
-                        storeGame();
-                        players[which] = TicTacToeApp.app().getPlayer(index);
-                        selectedPlayers[which] = index;
-                        restoreGame();
+                        if (debug) Logv("SET_PLAYER: P%d->#%d", msg.arg1 + 1, msg.arg2);
+                        session.setPlayer(msg.arg1, msg.arg2);
                         break;
                     case SAVE_STATE:
-                        app.db.beginTransaction();
-                        try {
-                            app.putState("selectedPlayers", selectedPlayers);
-                            storeGame();
-                            app.db.setTransactionSuccessful();
-                        } finally {
-                            app.db.endTransaction();
-                        }
-                        try {
-                            saveBarrier.await();
-                        } catch (Throwable t) {
-                            Log.e(TAG, "SAVE_STATE barrier failure", t);
+                        session.save();
+                        if (msg.obj != null) {
+                            final CountDownLatch saved = (CountDownLatch) msg.obj;
+                            // After the save, which waits for a move in progress; the writer commits in order.
+                            session.whenIdle(new Runnable() {
+                                @Override
+                                public void run() {
+                                    app.dbWriter().execute(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            saved.countDown();
+                                        }
+                                    });
+                                }
+                            });
                         }
                         break;
                     case SET_SEED:
-                        Player.prng.setSeed((int[]) msg.obj);
-                        int[] seed = new int[32];
-                        for (int i = 0; i < 32; i++)
-                            seed[i] = Player.prng.next(32);
-                        app.putState("rngSeed", seed);
+                        final int[] newSeed = (int[]) msg.obj;
+                        // Player.prng is in use while the AI is thinking.
+                        session.whenIdle(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Reseeding in the middle of a logged game keeps it out of the log.
+                                int[] seed = new int[32];
+                                ReplayLog.PrngUse prng = ReplayLog.usePrng();
+                                try {
+                                    Player.prng.setSeed(newSeed);
+                                    for (int i = 0; i < 32; i++)
+                                        seed[i] = Player.prng.next(32);
+                                } finally {
+                                    prng.close();
+                                }
+                                app.setSeed(seed);
+                                session.setRandom(app.random(SplitRandom.STREAM_GAME));
+                            }
+                        });
                         break;
                 }
+                if (msg.what >= 0 && msg.what < messageTimes.length)
+                    messageTimes[msg.what].recordSince(start);
             }
         }
 
-        long tally[] = null;
-        Game game = null;
-        long[] selectedPlayers = null;
-        Player[] players = new Player[2];
-        byte lastResult = -2;
+        volatile GameSession session = null;
+        volatile SqliteGameStorage storage = null;
+        volatile GameHistory history = null;
+        private ReplayLog.Writer replayLog = null;
 
         public GameBGThread(String name) {
             super(name);
@@ -356,126 +649,94 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
             super(name, priority);
         }
 
-        private void storeGame () {
-            byte[] gameData = app.gameSerializer.toBytes(game);
-            byte[] tallyData = app.serializer.toBytes(tally);
-            ContentValues values = new ContentValues();
-            values.put(AppDB.KEY_P1ID, selectedPlayers[0]);
-            values.put(AppDB.KEY_P2ID, selectedPlayers[1]);
-            values.put(AppDB.KEY_GAME, gameData);
-            values.put(AppDB.KEY_TALLY, tallyData);
-            values.put(AppDB.KEY_RESULT, lastResult);
-            long result = app.db.insert(AppDB.GAME_TABLE_NAME, null, values);
-            if (debug) Logv("storeGame result: %d", result);
-        }
-
-        private void restoreGame () {
-            String whereString = AppDB.KEY_P1ID + "=" + Long.toString(selectedPlayers[0]) + " AND " + AppDB.KEY_P2ID + "=" + Long.toString(selectedPlayers[1]);
-            Cursor result = app.db.query(true, AppDB.GAME_TABLE_NAME, AppDB.TALLY_GAME_RESULT_COLS, whereString, null, null, null, null, null);
-            Game storedGame = null;
-            long[] storedTally = null;
-            lastResult = -2;
-            if (result.getCount() == 1 && result.moveToFirst()) {
-                 try {
-                    storedGame = (Game) app.gameSerializer.fromBytes(result.getBlob(result.getColumnIndexOrThrow(AppDB.KEY_GAME)));
-                    storedTally = (long[]) app.serializer.fromBytes(result.getBlob(result.getColumnIndexOrThrow(AppDB.KEY_TALLY)));
-                    lastResult = (byte) result.getInt(result.getColumnIndexOrThrow(AppDB.KEY_RESULT));
-                } catch (Exception e) {
-                    Log.e(TAG, "Error restoring game", e);
-                }
-            }
-            result.close();
-            if (debug) Logd("restoreGame: %s %s", storedGame, storedTally == null ? "null" : Arrays.toString(storedTally));
-            if (storedGame != null) {
-                game = storedGame;
-            } else {
-                newGame();
-            }
-            if (storedTally != null && storedTally.length == 6) {
-                tally = storedTally;
-            } else {
-                tally = new long[6];
-            }
-            sendUpdate(formatResults());
-            sendSetInput();
-        }
-
-        public Game newGame() {
-            if (debug) Logv("newGame()");
-            game = new Game(players[0], players[1]);
-            if (game.getPlayer(2) == null)
-                game.run(1);
-            sendUpdate(formatResults());
-            sendSetInput();
-            return game;
-        }
-
-        void savePlayers() {
-            app.db.beginTransaction();
+        private void openReplayLog() {
+            File file = new File(getFilesDir(), "replay.log");
             try {
-                savePlayer(0);
-                if (players[0] != players[1])
-                    savePlayer(1);
-                app.db.setTransactionSuccessful();
-            } finally {
-                app.db.endTransaction();
-            }
-        }
-
-        private void savePlayer(int select) {
-            if (players[select] == null || !players[select].saveable()) {
-                if (debug) Logv("savePlayer(%d): no state to save", select);
-                return;
+                if (file.length() > MAX_REPLAY_LOG && !file.renameTo(new File(getFilesDir(), "replay.log.old")))
+                    Log.w(TAG, "Failed to rotate " + file);
+                replayLog = new ReplayLog.Writer(new FileOutputStream(file, true), app.serializer);
+                session.setReplayLog(replayLog);
+            } catch (IOException e) {
+                Log.e(TAG, "Error opening replay log", e);
             }
-            Player player = players[select];
-            byte[] state = app.serializer.toBytes(player);
-            long id = app.getPlayerID(player);
-            ContentValues update = new ContentValues();
-            update.put(AppDB.KEY_STATE, state);
-            if (debug) Logd("savePlayer(%d): %s", select, update);
-            String selector = String.format("_id=%d", id);
-            app.db.update(AppDB.BRAINS_TABLE_NAME, update, selector, null);
         }
 
-        private void sendUpdate(String tallyUpdate) {
-            handler.sendMessage(UIHandler.UPDATE_DISPLAY, game.board(), 0, tallyUpdate);
-        }
+        @Override
+        protected void onLooperPrepared() {
+            super.onLooperPrepared();
+            bgHandler = bgThread.new GameHandler(bgThread.getLooper());
+            history = new GameHistory(app, bgHandler);
+            storage = new SqliteGameStorage(app, new BrainPersister(app, bgHandler), history);
+            session = new GameSession(app, app.gameCodec, app.serializer, storage, new GameSession.Sink() {
+                @Override
+                public void board(int board) {
+                    display.board(board);
+                }
 
-        private void sendSetInput() {
-            int nextState = WAIT_TAP;
-            int waitingPlayer = 0;
-            if (game.status() == Game.PLAYING) {
-                if (game.getPlayer() == null) {
-                    nextState = WAIT_MOVE;
-                    waitingPlayer = game.getCurrentPlayer();
+                @Override
+                public void tally(CharSequence tally) {
+                    display.tally(tally);
                 }
-            } else
-                waitingPlayer = 3;
-            if (debug) Logv("sendSetInput: sent %d %d", nextState,waitingPlayer);
-            handler.sendMessage(UIHandler.WAIT_INPUT, nextState, waitingPlayer, null);
-        }
 
+                @Override
+                public void input(int state, int waitingPlayer) {
+                    if (debug) Logv("input: sent %d %d", state, waitingPlayer);
+                    display.input(state, waitingPlayer);
+                }
 
-        private String formatResults() {
-            return String.format("Result: %s\nP1 win: %d\nP2 win: %d\nDraw:   %d", lastResult == Game.DRAW ? "Draw" : lastResult == Game.P1_WIN ? "P1 Win" : lastResult == Game.P2_WIN ? "P2 Win" : "", tally[0], tally[1], tally[2]);
-        }
+                @Override
+                public void error(String message, Throwable e) {
+                    Log.e(TAG, message, e);
+                }
+            }, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    bgHandler.post(command);
+                }
+            }, app.aiExecutor());
+            session.setRandom(app.random(SplitRandom.STREAM_GAME));
+            openReplayLog();
 
+            // Stage 1: saved state, already in memory.
+            long stage = System.nanoTime();
+            long[] selectedPlayers = app.getObject("selectedPlayers");
+            if (selectedPlayers == null)
+                selectedPlayers = new long[2];
+            int[] rngSeed = app.getObject("rngSeed");
+            stateTime.recordSince(stage);
+            if (debug) Logd("selectedPlayers: %s", Arrays.toString(selectedPlayers));
 
-        @Override
-        protected void onLooperPrepared() {
-            super.onLooperPrepared();
-            bgHandler = bgThread.new GameHandler(bgThread.getLooper());
-            Cursor playerSelectCursor = app.db.query(true, AppDB.BRAINS_TABLE_NAME, spinnerQueryCols, null, null, null, null, AppDB.KEY_ID, null);
+            // Stage 2: the brains query and the second brain on a helper thread, the first brain here. The loads
+            // only warm the player cache; the selection is checked against the query below.
+            stage = System.nanoTime();
+            final long prefetchID = selectedPlayers[1];
+            FutureTask<Cursor> brainsQuery = new FutureTask<Cursor>(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    long start = System.nanoTime();
+                    Cursor cursor = app.db.query(true, AppDB.BRAINS_TABLE_NAME, spinnerQueryCols, null, null, null, null, AppDB.KEY_ID, null);
+                    // Fills the cursor window here rather than on the caller.
+                    cursor.getCount();
+                    brainsQueryTime.recordSince(start);
+                    app.getPlayer(prefetchID);
+                    return cursor;
+                }
+            });
+            new Thread(brainsQuery, "TicTacToeStartup").start();
+            app.getPlayer(selectedPlayers[0]);
+            Cursor playerSelectCursor;
+            try {
+                playerSelectCursor = brainsQuery.get();
+            } catch (Exception e) {
+                Log.e(TAG, "Error querying brains", e);
+                playerSelectCursor = app.db.query(true, AppDB.BRAINS_TABLE_NAME, spinnerQueryCols, null, null, null, null, AppDB.KEY_ID, null);
+            }
+            loadBrainsTime.recordSince(stage);
             SimpleCursorAdapter playerSelectAdapter = new SimpleCursorAdapter(GameActivity.this, android.R.layout.simple_spinner_item, playerSelectCursor, spinnerAdapterCols, spinnerAdapterRowViews);
             playerSelectAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
 
-            tally = app.getObject("tally");
-            if (tally == null)
-                tally = new long[3];
-            selectedPlayers = app.getObject("selectedPlayers");
-            if (selectedPlayers == null)
-                selectedPlayers = new long[2];
-            if (debug) Logd("selectedPlayers: %s", Arrays.toString(selectedPlayers));
+            // Stage 3: selection, seed and the stored game.
+            stage = System.nanoTime();
             final int[] selected = new int[2];
             for (int i = 0; i < 2; i++) {
                 long selectedID = playerSelectAdapter.getItemId(0);
@@ -488,11 +749,8 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
                 }
                 if (debug) Logd("set player %d to index %d, id %d", i, selected[i], selectedID);
                 selectedPlayers[i] = selectedID;
-                players[i] = app.getPlayer(selectedID);
             }
 
-
-            int[] rngSeed = app.getObject("rngSeed");
             if (rngSeed == null) {
                 if (debug) Logd("queueing entropy collection");
                 // This could potentially block indefinitely, so it shouldn't run on the UI or game thread.
@@ -521,15 +779,16 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
                 if (debug) Logd("seeding PRNG with saved seed");
                 Player.prng.setSeed(rngSeed);
             }
-            restoreGame();
+            session.start(selectedPlayers[0], selectedPlayers[1]);
+            restoreStageTime.recordSince(stage);
             handler.sendMessage(UIHandler.INIT_COMPLETE, selected[0], selected[1], playerSelectAdapter);
         }
     }
 
     class UIHandler extends MessageHandler {
-        final static int UPDATE_DISPLAY=0;
-        final static int WAIT_INPUT = 1;
         final static int INIT_COMPLETE = 2;
+        final static int SHOW_TOAST = 3;
+        final static int SHOW_TEXT = 4;
 
         public UIHandler() {
             super();
@@ -542,20 +801,6 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case UPDATE_DISPLAY:
-                    if (debug) Logv("UPDATE_DISPLAY: %s %s", Board.toString(msg.arg1), msg.obj);
-                    gameView.setContents(msg.arg1);
-                    if (msg.obj != null) {
-                        tallyView.setText((String)msg.obj);
-                        tallyView.invalidate();
-                    }
-                    gameView.invalidate();
-                    break;
-                case WAIT_INPUT:
-                    if (debug) Logv("WAIT_INPUT: %d", msg.arg1);
-                    awaitingInput = msg.arg1 & 0xffff;
-                    updateWaiting(msg.arg2);
-                    break;
                 case INIT_COMPLETE:
                     if (debug) Logv("INIT_COMPLETE: %d %d %s", msg.arg1, msg.arg2, msg.obj);
                     playerSelect[0].setAdapter((SpinnerAdapter) msg.obj);
@@ -565,7 +810,22 @@ public class GameActivity extends ActionBarActivity implements AdapterView.OnIte
                     playerSelect[1].setOnItemSelectedListener(GameActivity.this);
                     playerSelect[0].setSelection(msg.arg1);
                     playerSelect[1].setSelection(msg.arg2);
-                    script.show();
+                    interactiveTime.recordSince(createStart);
+                    if (debug) Logd("interactive after %dms", (System.nanoTime() - createStart) / 1000000);
+                    // After the first frame with the board and players.
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            script().show();
+                        }
+                    });
+                    break;
+                case SHOW_TOAST:
+                    Toast.makeText(getApplicationContext(), (CharSequence) msg.obj, Toast.LENGTH_LONG).show();
+                    break;
+                case SHOW_TEXT:
+                    new AlertDialog.Builder(GameActivity.this).setMessage((CharSequence) msg.obj)
+                            .setPositiveButton(android.R.string.ok, null).show();
                     break;
             }
             super.handleMessage(msg);    //To change body of overridden methods use File | Settings | File Templates.
@@ -0,0 +1,218 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Board;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+/**
+ * Versioned binary encoding of the game and tally blobs in the game table, replacing Java serialization.
+ * <p/>
+ * Game layout, 33 bytes: magic 'T' 'G', version, status, turn, board (int), moves ({@link PackedMoves}, long), player
+ * 1 ID, player 2 ID (long, -1 for the user). Tally layout: magic 'T' 'T', version, count, then count unsigned LEB128
+ * varints.
+ * <p/>
+ * Blobs that don't start with the magic are Java serialization streams (which start with 0xACED) written by earlier
+ * versions. They are decoded with the legacy serializers and rewritten in this format the next time the row is
+ * stored.
+ */
+public class GameCodec {
+    private static final byte MAGIC = 'T';
+    private static final byte GAME_TAG = 'G';
+    private static final byte TALLY_TAG = 'T';
+    static final byte VERSION = 2;
+    static final byte TALLY_VERSION = 1;
+    static final int GAME_SIZE = 33;
+    private static final int NO_PLAYER = -1;
+
+    private final PlayerRegistry registry;
+    private final Serializer legacyGameSerializer;
+    private final Serializer legacySerializer;
+
+    public GameCodec(PlayerRegistry registry, Serializer legacyGameSerializer, Serializer legacySerializer) {
+        this.registry = registry;
+        this.legacyGameSerializer = legacyGameSerializer;
+        this.legacySerializer = legacySerializer;
+    }
+
+    static boolean isLegacy(byte[] data) {
+        return data.length < 3 || data[0] != MAGIC;
+    }
+
+    /**
+     * @param moves the moves played so far in {@code game}, packed as by {@link PackedMoves}
+     */
+    public byte[] encodeGame(Game game, long moves) {
+        byte[] data = new byte[GAME_SIZE];
+        data[0] = MAGIC;
+        data[1] = GAME_TAG;
+        data[2] = VERSION;
+        data[3] = game.status();
+        data[4] = (byte) game.turn();
+        putInt(data, 5, game.board());
+        putLong(data, 9, moves);
+        putLong(data, 17, playerID(game.getPlayer(1)));
+        putLong(data, 25, playerID(game.getPlayer(2)));
+        return data;
+    }
+
+    /**
+     * Rebuilds a game by replaying its moves, in the order they were played, into a new {@link Game}. Finished games
+     * are replayed without players, so learning players don't see the game a second time.
+     *
+     * @throws IllegalArgumentException if the data is not a valid game
+     */
+    public Game decodeGame(byte[] data) {
+        if (data == null)
+            return null;
+        if (isLegacy(data)) {
+            synchronized (legacyGameSerializer) {
+                return (Game) legacyGameSerializer.fromBytes(data);
+            }
+        }
+        checkGame(data);
+        byte status = data[3];
+        int board = getInt(data, 5);
+        long moves = getLong(data, 9);
+        long p1id = getLong(data, 17);
+        long p2id = getLong(data, 25);
+        Game game;
+        if (status == Game.PLAYING)
+            game = new Game(player(p1id), player(p2id));
+        else
+            game = new Game(null, null);
+        int count = 0;
+        for (; count < 9 && (moves >>> (count * 4) & 0xf) != 0; count++) {
+            int move = (int) (moves >>> (count * 4) & 0xf) - 1;
+            if (move > 8 || game.status() != Game.PLAYING || Board.get(game.board(), move / 3, move % 3) != 0)
+                throw new IllegalArgumentException(String.format("Invalid moves %x", moves));
+            game.play(move / 3, move % 3, (count & 1) + 1);
+        }
+        if (count < 16 && moves >>> (count * 4) != 0)
+            throw new IllegalArgumentException(String.format("Invalid moves %x", moves));
+        for (int i = 0; i < 9; i++)
+            if (Board.get(game.board(), i / 3, i % 3) != Board.get(board, i / 3, i % 3))
+                throw new IllegalArgumentException(String.format("Moves %x don't reach board %08x", moves, board));
+        if (game.status() != status)
+            throw new IllegalArgumentException(String.format("Replay of board %08x ended with status %d, expected %d", board, game.status(), status));
+        if (game.turn() != (data[4] & 0xff))
+            throw new IllegalArgumentException(String.format("Replay of board %08x ended on turn %d, expected %d", board, game.turn(), data[4] & 0xff));
+        return game;
+    }
+
+    /**
+     * @return the moves of a stored game, packed as by {@link PackedMoves}, or 0 for a legacy blob, which doesn't
+     * record them
+     * @throws IllegalArgumentException if the data is not a valid game
+     */
+    public long decodeMoves(byte[] data) {
+        if (data == null || isLegacy(data))
+            return 0;
+        checkGame(data);
+        return getLong(data, 9);
+    }
+
+    private static void checkGame(byte[] data) {
+        if (data[1] != GAME_TAG)
+            throw new IllegalArgumentException("Not a game blob");
+        if (data[2] != VERSION)
+            throw new IllegalArgumentException(String.format("Unsupported game blob version %d", data[2]));
+        if (data.length != GAME_SIZE)
+            throw new IllegalArgumentException("Not a game blob");
+    }
+
+    public byte[] encodeTally(long[] tally) {
+        byte[] buffer = new byte[4 + tally.length * 10];
+        buffer[0] = MAGIC;
+        buffer[1] = TALLY_TAG;
+        buffer[2] = TALLY_VERSION;
+        buffer[3] = (byte) tally.length;
+        int pos = 4;
+        for (long value : tally) {
+            if (value < 0)
+                throw new IllegalArgumentException(String.format("Negative tally count %d", value));
+            while ((value & ~0x7fL) != 0) {
+                buffer[pos++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            buffer[pos++] = (byte) value;
+        }
+        byte[] data = new byte[pos];
+        System.arraycopy(buffer, 0, data, 0, pos);
+        return data;
+    }
+
+    public long[] decodeTally(byte[] data) {
+        if (data == null)
+            return null;
+        if (isLegacy(data)) {
+            synchronized (legacySerializer) {
+                return (long[]) legacySerializer.fromBytes(data);
+            }
+        }
+        if (data[1] != TALLY_TAG || data.length < 4)
+            throw new IllegalArgumentException("Not a tally blob");
+        if (data[2] != TALLY_VERSION)
+            throw new IllegalArgumentException(String.format("Unsupported tally blob version %d", data[2]));
+        long[] tally = new long[data[3] & 0xff];
+        int pos = 4;
+        for (int i = 0; i < tally.length; i++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (pos == data.length || shift > 63)
+                    throw new IllegalArgumentException("Truncated tally blob");
+                b = data[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            tally[i] = value;
+        }
+        return tally;
+    }
+
+    private long playerID(Player player) {
+        return player == null ? NO_PLAYER : registry.getPlayerID(player);
+    }
+
+    private Player player(long id) {
+        return id == NO_PLAYER ? null : registry.getPlayer(id);
+    }
+
+    private static void putInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16 | (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+    }
+
+    private static void putLong(byte[] data, int pos, long value) {
+        putInt(data, pos, (int) (value >>> 32));
+        putInt(data, pos + 4, (int) value);
+    }
+
+    private static long getLong(byte[] data, int pos) {
+        return (long) getInt(data, pos) << 32 | getInt(data, pos + 4) & 0xffffffffL;
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.util.Log;
+import us.looking_glass.tictactoe.Game;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Records every finished game in the history table and keeps running win, loss and draw counts in the stats table,
+ * per matchup, per brain and per opening move, so rates never need a scan of the history, and the brains'
+ * {@link Ratings}. Games are buffered on the
+ * owner thread and written in batches on the app's database writer thread, on the same schedule as
+ * {@link BrainPersister}. Move sequences are packed as by {@link PackedMoves}.
+ */
+class GameHistory {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:GameHistory";
+    // Stats kinds. For a matchup, first and second are the brain ids and wins count player 1 wins; for a brain,
+    // first is its id, second is 0 and wins count its own wins from either seat; for an opening, first is the cell
+    // of the first move, second is 0 and wins count player 1 wins.
+    final static int STATS_MATCHUP = 0;
+    final static int STATS_BRAIN = 1;
+    final static int STATS_OPENING = 2;
+    private final static Metrics.Histogram writeTime = Metrics.histogram("db.writeHistory", "ns");
+    private final static Metrics.Counter gamesRecorded = Metrics.counter("history.games");
+
+    private final TicTacToeApp app;
+    private final Handler owner;
+    private final int maxPending;
+    private final long maxDelay;
+    private final List<long[]> pending = new ArrayList<long[]>();
+    private SQLiteStatement insertGame;
+    private SQLiteStatement insertStats;
+    private SQLiteStatement updateStats;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    GameHistory(TicTacToeApp app, Handler owner) {
+        this(app, owner, 50, 5000);
+    }
+
+    GameHistory(TicTacToeApp app, Handler owner, int maxPending, long maxDelay) {
+        this.app = app;
+        this.owner = owner;
+        this.maxPending = maxPending;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Queues a finished game. Must be called on the owner thread.
+     */
+    void record(long p1id, long p2id, int result, long moves) {
+        pending.add(new long[] { p1id, p2id, result, moves, System.currentTimeMillis() });
+        if (pending.size() == 1)
+            owner.postDelayed(flushTask, maxDelay);
+        if (pending.size() >= maxPending)
+            flush();
+    }
+
+    /**
+     * Queues the buffered games for writing. Must be called on the owner thread.
+     *
+     * @return a future that completes once the games are committed
+     */
+    Future<?> flush() {
+        owner.removeCallbacks(flushTask);
+        final List<long[]> batch = new ArrayList<long[]>(pending);
+        pending.clear();
+        return app.dbWriter().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!batch.isEmpty())
+                    write(batch);
+            }
+        });
+    }
+
+    /**
+     * @return wins, losses and draws as described for the kind, all 0 if no game has been recorded
+     */
+    long[] stats(int kind, long first, long second) {
+        long[] result = new long[3];
+        Cursor cursor = app.db.query(AppDB.STATS_TABLE_NAME, AppDB.STATS_COLS,
+                AppDB.KEY_KIND + "=" + kind + " AND " + AppDB.KEY_FIRST + "=" + first + " AND " + AppDB.KEY_SECOND + "=" + second,
+                null, null, null, null);
+        try {
+            if (cursor.moveToFirst())
+                for (int i = 0; i < 3; i++)
+                    result[i] = cursor.getLong(i);
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private void write(List<long[]> batch) {
+        long start = System.nanoTime();
+        if (insertGame == null) {
+            insertGame = app.db.compileStatement("INSERT INTO " + AppDB.HISTORY_TABLE_NAME + " (" + AppDB.KEY_P1ID + ", "
+                    + AppDB.KEY_P2ID + ", " + AppDB.KEY_RESULT + ", " + AppDB.KEY_MOVES + ", " + AppDB.KEY_TIME
+                    + ") VALUES (?, ?, ?, ?, ?);");
+            insertStats = app.db.compileStatement("INSERT OR IGNORE INTO " + AppDB.STATS_TABLE_NAME + " (" + AppDB.KEY_KIND
+                    + ", " + AppDB.KEY_FIRST + ", " + AppDB.KEY_SECOND + ") VALUES (?, ?, ?);");
+            updateStats = app.db.compileStatement("UPDATE " + AppDB.STATS_TABLE_NAME + " SET " + AppDB.KEY_WINS + "="
+                    + AppDB.KEY_WINS + "+?, " + AppDB.KEY_LOSSES + "=" + AppDB.KEY_LOSSES + "+?, " + AppDB.KEY_DRAWS + "="
+                    + AppDB.KEY_DRAWS + "+? WHERE " + AppDB.KEY_KIND + "=? AND " + AppDB.KEY_FIRST + "=? AND "
+                    + AppDB.KEY_SECOND + "=?;");
+        }
+        // Sum the batch per stats row first, so each row is updated once per batch.
+        Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+        for (long[] game : batch) {
+            int result = (int) game[2];
+            int outcome = result == Game.P1_WIN ? 0 : result == Game.P2_WIN ? 1 : 2;
+            count(totals, STATS_MATCHUP, game[0], game[1], outcome);
+            count(totals, STATS_BRAIN, game[0], 0, outcome);
+            count(totals, STATS_BRAIN, game[1], 0, outcome == 2 ? 2 : 1 - outcome);
+            int opening = PackedMoves.opening(game[3]);
+            if (opening >= 0)
+                count(totals, STATS_OPENING, opening, 0, outcome);
+        }
+        boolean committed = false;
+        app.db.beginTransaction();
+        try {
+            for (long[] game : batch) {
+                for (int i = 0; i < 5; i++)
+                    insertGame.bindLong(i + 1, game[i]);
+                insertGame.executeInsert();
+            }
+            for (long[] row : totals.values()) {
+                for (int i = 0; i < 3; i++)
+                    insertStats.bindLong(i + 1, row[i]);
+                insertStats.executeInsert();
+                for (int i = 0; i < 6; i++)
+                    updateStats.bindLong(i + 1, row[(i + 3) % 6]);
+                updateStats.execute();
+            }
+            app.ratings.update(batch);
+            app.db.setTransactionSuccessful();
+            committed = true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error writing game history", e);
+            throw e;
+        } finally {
+            app.db.endTransaction();
+            if (!committed)
+                app.ratings.forget();
+        }
+        gamesRecorded.add(batch.size());
+        writeTime.recordSince(start);
+        if (debug) Logd("wrote %d games, %d stats rows", batch.size(), totals.size());
+    }
+
+    private static void count(Map<String, long[]> totals, int kind, long first, long second, int outcome) {
+        String key = kind + ":" + first + ":" + second;
+        long[] row = totals.get(key);
+        if (row == null) {
+            row = new long[] { kind, first, second, 0, 0, 0 };
+            totals.put(key, row);
+        }
+        row[3 + outcome]++;
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+}
@@ -22,6 +22,11 @@ import us.looking_glass.util.Serializer;
 import java.io.*;
 
 public class GameSerializer extends Serializer {
+    private final PlayerRegistry registry;
+
+    public GameSerializer(PlayerRegistry registry) {
+        this.registry = registry;
+    }
 
     @Override
     protected ObjectOutput getObjectOutput(OutputStream os) throws IOException {
@@ -33,7 +38,24 @@ public class GameSerializer extends Serializer {
             @Override
             protected Object replaceObject(Object object) throws IOException {
                 if (object instanceof Player)
-                    return new PlayerProxy(TicTacToeApp.app().getPlayerID((Player) object));
+                    return new PlayerProxy(registry.getPlayerID((Player) object));
+                else
+                    return object;
+            }
+        };
+    }
+
+    @Override
+    protected ObjectInput getObjectInput(InputStream is) throws IOException {
+        return new ObjectInputStream(is) {
+            {
+                this.enableResolveObject(true);
+            }
+
+            @Override
+            protected Object resolveObject(Object object) throws IOException {
+                if (object instanceof PlayerProxy)
+                    return registry.getPlayer(((PlayerProxy) object).id);
                 else
                     return object;
             }
@@ -46,9 +68,5 @@ public class GameSerializer extends Serializer {
         private PlayerProxy(long id) {
             this.id = id;
         }
-
-        private Object readResolve() {
-            return TicTacToeApp.app().getPlayer(id);
-        }
     }
 }
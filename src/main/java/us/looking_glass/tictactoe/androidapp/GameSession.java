@@ -0,0 +1,832 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Board;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The interactive game between two selected players: moves, AI turns, the tally and saving and restoring of each
+ * matchup. A session is plain Java; it reads and writes through a {@link Storage}, reports what to show through a
+ * {@link Sink}, and runs on two executors. All methods except {@link #snapshot()} must be called on the owner
+ * executor's thread, which is also where the session's callbacks run; AI moves and pondering run on the AI executor.
+ * With a direct executor for both, every call completes synchronously.
+ * <p/>
+ * An AI that searches moves on a copy of the game, with copies of any learning brains, and its move is then played in
+ * the game on the owner thread; moves requested in the meantime wait for it, while other commands run right away. A
+ * brain that fails {@link BrainReplicas#learnsFromReplay} has to make the moves it learns from, so it searches in the
+ * game itself: the game and brains belong to the AI executor until the move is done, and every command is deferred
+ * until then. Either way the brain's own move is played however long it takes; a search over the budget of
+ * {@value #AI_BUDGET_MS} ms is only counted. Saving or leaving the matchup skips a move that hasn't started yet.
+ */
+public class GameSession {
+    public final static int WAIT_IGNORE = 0;
+    public final static int WAIT_MOVE = 1;
+    public final static int WAIT_TAP = 2;
+    // Searches longer than this are counted as overruns. The library's search can't be cut short, and the owner thread
+    // isn't blocked by it, so the move is still the brain's own.
+    private final static long AI_BUDGET_MS = 200;
+    private final static Metrics.Histogram aiMoveTime = Metrics.histogram("ai.move", "ns");
+    private final static Metrics.Counter aiOverruns = Metrics.counter("ai.budgetOverruns");
+    private final static Metrics.Counter aiSkipped = Metrics.counter("ai.skipped");
+    private final static Metrics.Histogram ponderTime = Metrics.histogram("ai.ponder", "ns");
+    private final static Metrics.Counter ponderHits = Metrics.counter("ai.ponderHits");
+    private final static Metrics.Counter ponderMisses = Metrics.counter("ai.ponderMisses");
+    private final static Metrics.Counter ponderDiscarded = Metrics.counter("ai.ponderDiscarded");
+    private final static Metrics.Counter unloggedGames = Metrics.counter("replay.unloggedGames");
+    private final static Metrics.Histogram gameBlobSize = Metrics.histogram("blob.game", "bytes");
+    private final static Metrics.Histogram tallyBlobSize = Metrics.histogram("blob.tally", "bytes");
+
+    /**
+     * Persistence for sessions. Called on the owner thread unless noted.
+     */
+    public interface Storage {
+        /**
+         * @return the stored state of a matchup, or null if there is none; includes saves still in progress
+         */
+        GameSnapshot load(long p1id, long p2id);
+
+        /**
+         * Queues a snapshot for saving. Saves are committed in order. May be called on any thread.
+         *
+         * @param selected whether the snapshot is of the session's selected matchup, rather than of one it only added
+         * results to; the selected one is what the app restores on its next start
+         */
+        Future<?> save(GameSnapshot snapshot, boolean selected);
+
+        /**
+         * A game the brain played in has finished, so its state needs saving. Called for each brain of the game
+         * before {@link #gameFinished}.
+         */
+        void brainChanged(Player player);
+
+        /**
+         * A game has finished; called once per game.
+         */
+        void gameFinished(long p1id, long p2id, int result, long moves);
+
+        /**
+         * Brains are lent to the AI executor while held, so their state must not be read; saves requested in the
+         * meantime happen on release.
+         */
+        void holdBrains(boolean held);
+
+        /**
+         * Queues everything buffered for writing.
+         */
+        void flush();
+    }
+
+    public interface Sink {
+        void board(int board);
+        void tally(CharSequence tally);
+        /**
+         * @param state one of {@link #WAIT_IGNORE}, {@link #WAIT_MOVE} and {@link #WAIT_TAP}
+         * @param waitingPlayer the player to move, 0 for an AI's turn or 3 when the game is over
+         */
+        void input(int state, int waitingPlayer);
+        void error(String message, Throwable e);
+    }
+
+    private final PlayerRegistry registry;
+    private final GameCodec codec;
+    private final Serializer serializer;
+    private final Storage storage;
+    private final Sink sink;
+    private final Executor owner;
+    private final Executor ai;
+
+    private long tally[] = null;
+    private Game game = null;
+    private final long[] selectedPlayers = new long[2];
+    private final Player[] players = new Player[2];
+    private byte lastResult = -2;
+    // Moves of the current game, packed as by PackedMoves.
+    private long moves = 0;
+    private ReplayLog.Writer replayLog = null;
+    // Draws the seed of each game, which seeds Player.prng when the game is logged.
+    private SplitRandom random = new SplitRandom(System.nanoTime());
+    private long gameSeed = 0;
+    // Whether the current game is logged from its start; a game restored mid-way isn't. Only logged at its end if
+    // nothing else drew from Player.prng since replayToken was taken.
+    private boolean replayable = false;
+    private long replayToken = -1;
+    // Tally text last formatted, and what it was formatted from.
+    private String tallyText = null;
+    private final long[] shownTally = new long[3];
+    private byte shownResult;
+    // Set while an AI move is queued or running; commands wait in deferred until it is done.
+    private boolean thinking = false;
+    private final ArrayList<Runnable> deferred = new ArrayList<Runnable>();
+    // Set while an AI searches on a copy of the game; moves wait in deferred until its move is played.
+    private boolean searching = false;
+    private Search search = null;
+    // Copies of the game's learning brains to search with, made on the first search of each game.
+    private final Player[] searchBrains = new Player[2];
+    // State of the learning brain to ponder with, serialized on the first wait of each game.
+    private byte[] ponderState = null;
+    // Bumped to skip a queued AI move that no longer belongs to the current game, and to drop the result of a search
+    // that was cancelled.
+    private final AtomicInteger aiGeneration = new AtomicInteger();
+    // Replies pondered for the current wait, indexed by the human's cell, with the generation in the last slot.
+    private volatile int[] pondered = null;
+    private final AtomicInteger ponderGeneration = new AtomicInteger();
+    // State of the matchup as last queued for saving; taken only when saving, not on every move.
+    private volatile GameSnapshot snapshot = null;
+
+    /**
+     * @param serializer copies learning brains for AI searches
+     */
+    public GameSession(PlayerRegistry registry, GameCodec codec, Serializer serializer, Storage storage, Sink sink,
+                       Executor owner, Executor ai) {
+        this.registry = registry;
+        this.codec = codec;
+        this.serializer = serializer;
+        this.storage = storage;
+        this.sink = sink;
+        this.owner = owner;
+        this.ai = ai;
+    }
+
+    /**
+     * Logs every game started from now on to the writer; null stops logging. The caller keeps ownership of the
+     * writer.
+     */
+    public void setReplayLog(ReplayLog.Writer replayLog) {
+        this.replayLog = replayLog;
+        replayable = false;
+    }
+
+    /**
+     * Sets the generator that seeds each game from now on.
+     */
+    void setRandom(SplitRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * Selects the players and restores their matchup.
+     */
+    public void start(long p1id, long p2id) {
+        start(p1id, p2id, storage.load(p1id, p2id));
+    }
+
+    /**
+     * Selects the players and restores their matchup from a snapshot the caller loaded, or starts it afresh if
+     * {@code stored} is null.
+     */
+    public void start(long p1id, long p2id, GameSnapshot stored) {
+        selectedPlayers[0] = p1id;
+        selectedPlayers[1] = p2id;
+        players[0] = registry.getPlayer(p1id);
+        players[1] = registry.getPlayer(p2id);
+        restoreGame(stored);
+    }
+
+    /**
+     * @return the state of the matchup as last queued for saving, or null if it hasn't been saved yet; may be called
+     * on any thread
+     */
+    public GameSnapshot snapshot() {
+        return snapshot;
+    }
+
+    public long[] selectedPlayers() {
+        return selectedPlayers.clone();
+    }
+
+    public boolean isThinking() {
+        return thinking || searching;
+    }
+
+    /**
+     * Plays a human move, followed by the AI's reply if an AI is to move next.
+     */
+    public void playMove(final int x, final int y) {
+        if (deferMove(new Runnable() {
+            @Override
+            public void run() {
+                playMove(x, y);
+            }
+        }))
+            return;
+        int[] replies = takePondered();
+        if (Board.get(game.board(), x, y) == 0) {
+            game.play(x, y, game.getCurrentPlayer());
+            moves = PackedMoves.append(moves, game.board());
+            int reply = replies == null ? -1 : replies[x * 3 + y];
+            if (game.status() == Game.PLAYING && game.getPlayer() != null
+                    && reply >= 0 && Board.get(game.board(), reply / 3, reply % 3) == 0) {
+                ponderHits.increment();
+                game.play(reply / 3, reply % 3, game.getCurrentPlayer());
+                moveDone();
+            } else if (game.status() == Game.PLAYING && game.getPlayer() != null) {
+                if (replies != null)
+                    ponderMisses.increment();
+                sendUpdate(null);
+                requestAIMove();
+            } else
+                moveDone();
+        } else
+            sendSetInput();
+    }
+
+    /**
+     * Plays the AI's move, or starts a new game if this one is over.
+     */
+    public void tap() {
+        if (deferMove(new Runnable() {
+            @Override
+            public void run() {
+                tap();
+            }
+        }))
+            return;
+        if (game.status() == Game.PLAYING)
+            requestAIMove();
+        else
+            newGame();
+    }
+
+    /**
+     * Saves the current matchup and switches to the one with the given player in seat {@code which}, 0 or 1.
+     */
+    public void setPlayer(final int which, final long id) {
+        if (selectedPlayers[which] == id)
+            return;
+        if (thinking)
+            aiGeneration.incrementAndGet();
+        cancelSearch();
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                setPlayer(which, id);
+            }
+        }))
+            return;
+        storeGame();
+        players[which] = registry.getPlayer(id);
+        selectedPlayers[which] = id;
+        restoreGame(storage.load(selectedPlayers[0], selectedPlayers[1]));
+    }
+
+    /**
+     * Queues brains, history and the matchup for saving.
+     */
+    public void save() {
+        if (thinking)
+            aiGeneration.incrementAndGet();
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }))
+            return;
+        storage.flush();
+        if (replayLog != null) {
+            try {
+                replayLog.flush();
+            } catch (IOException e) {
+                replayLogFailed(e);
+            }
+        }
+        storeGame();
+    }
+
+    /**
+     * Adds the results of games played elsewhere, such as by a {@link MatchEngine}, to the tally of a matchup and
+     * saves it. The current matchup's tally is updated in place, so its next save doesn't overwrite the results.
+     *
+     * @param results player 1 wins, player 2 wins and draws
+     */
+    public void addResults(final long p1id, final long p2id, final long[] results) {
+        if (defer(new Runnable() {
+            @Override
+            public void run() {
+                addResults(p1id, p2id, results);
+            }
+        }))
+            return;
+        if (p1id == selectedPlayers[0] && p2id == selectedPlayers[1]) {
+            for (int i = 0; i < 3; i++)
+                tally[i] += results[i];
+            sendUpdate(formatResults());
+            storeGame();
+            return;
+        }
+        GameSnapshot stored = storage.load(p1id, p2id);
+        long[] storedTally = null;
+        if (stored != null) {
+            try {
+                storedTally = codec.decodeTally(stored.tally);
+            } catch (Exception e) {
+                sink.error("Error restoring tally", e);
+            }
+        }
+        if (storedTally == null || storedTally.length != 6)
+            storedTally = new long[6];
+        for (int i = 0; i < 3; i++)
+            storedTally[i] += results[i];
+        byte[] storedGame = stored != null ? stored.game
+                : codec.encodeGame(new Game(registry.getPlayer(p1id), registry.getPlayer(p2id)), 0);
+        storage.save(new GameSnapshot(p1id, p2id, storedGame, codec.encodeTally(storedTally), stored != null ? stored.lastResult : -2), false);
+    }
+
+    /**
+     * Runs a task on the owner thread once no AI move is in progress, right away if none is.
+     */
+    public void whenIdle(Runnable task) {
+        if (!defer(task))
+            task.run();
+    }
+
+    private boolean defer(Runnable command) {
+        if (!thinking)
+            return false;
+        deferred.add(command);
+        return true;
+    }
+
+    /**
+     * Defers a command that plays a move: until the AI's move has been played, whether or not it is searching in the
+     * game itself.
+     */
+    private boolean deferMove(Runnable command) {
+        if (!thinking && !searching)
+            return false;
+        deferred.add(command);
+        return true;
+    }
+
+    private void runDeferred() {
+        while (!thinking && !searching && !deferred.isEmpty())
+            deferred.remove(0).run();
+    }
+
+    private GameSnapshot takeSnapshot() {
+        GameSnapshot snapshot = new GameSnapshot(selectedPlayers[0], selectedPlayers[1], codec.encodeGame(game, moves), codec.encodeTally(tally), lastResult);
+        gameBlobSize.record(snapshot.game.length);
+        tallyBlobSize.record(snapshot.tally.length);
+        return snapshot;
+    }
+
+    /**
+     * Queues the current matchup for writing.
+     */
+    private Future<?> storeGame() {
+        snapshot = takeSnapshot();
+        return storage.save(snapshot, true);
+    }
+
+    private void restoreGame(GameSnapshot stored) {
+        Game storedGame = null;
+        long[] storedTally = null;
+        lastResult = -2;
+        if (stored != null) {
+            try {
+                storedGame = codec.decodeGame(stored.game);
+                storedTally = codec.decodeTally(stored.tally);
+                lastResult = stored.lastResult;
+            } catch (Exception e) {
+                sink.error("Error restoring game", e);
+            }
+        }
+        if (storedTally != null && storedTally.length == 6) {
+            tally = storedTally;
+        } else {
+            tally = new long[6];
+        }
+        moves = storedGame != null ? codec.decodeMoves(stored.game) : 0;
+        clearSearchBrains();
+        seedGame();
+        replayable = false;
+        if (storedGame != null) {
+            game = storedGame;
+            sendUpdate(formatResults());
+            sendSetInput();
+        } else {
+            newGame();
+        }
+    }
+
+    private void newGame() {
+        // The registry may have replaced a brain since the last game, as a finished training run does.
+        players[0] = registry.getPlayer(selectedPlayers[0]);
+        players[1] = registry.getPlayer(selectedPlayers[1]);
+        game = new Game(players[0], players[1]);
+        moves = 0;
+        clearSearchBrains();
+        seedGame();
+        startReplay();
+        sendUpdate(formatResults());
+        if (game.getPlayer(2) == null && game.getPlayer() != null)
+            requestAIMove();
+        else
+            sendSetInput();
+    }
+
+    private void seedGame() {
+        gameSeed = random.nextLong();
+    }
+
+    /**
+     * Seeds {@link Player#prng} with the game's seed and logs the brains' states on their first game, so the game
+     * can be replayed from the log.
+     */
+    private void startReplay() {
+        replayable = false;
+        if (replayLog == null)
+            return;
+        replayToken = ReplayLog.prngQuiet();
+        if (replayToken < 0)
+            return;
+        Player.prng.setSeed(ReplayLog.seedArray(gameSeed));
+        try {
+            replayLog.brain(selectedPlayers[0], players[0]);
+            replayLog.brain(selectedPlayers[1], players[1]);
+            replayable = true;
+        } catch (IOException e) {
+            replayLogFailed(e);
+        }
+    }
+
+    private void replayLogFailed(IOException cause) {
+        sink.error("Error writing replay log, logging stopped", cause);
+        try {
+            replayLog.close();
+        } catch (IOException e) {
+            // Already reported.
+        }
+        replayLog = null;
+        replayable = false;
+    }
+
+    /**
+     * Plays one move for the current AI player, which searches on the AI executor, on a copy of the game if it can.
+     */
+    private void requestAIMove() {
+        Game copy = searchCopy();
+        if (copy != null)
+            searchOnCopy(copy);
+        else
+            searchInGame();
+    }
+
+    /**
+     * @return a copy of the game, with copies of its learning brains, or null if the AI has to search in the game
+     * itself: a brain that fails {@link BrainReplicas#learnsFromReplay} has to make the moves it learns from
+     */
+    private Game searchCopy() {
+        Player[] copies = new Player[2];
+        for (int i = 0; i < 2; i++) {
+            Player player = game.getPlayer(i + 1);
+            if (player == null || !player.saveable()) {
+                copies[i] = player;
+                continue;
+            }
+            // The brain to move has to learn from the game as its copy would; the other only needs to be left alone.
+            if (player == game.getPlayer() && !BrainReplicas.learnsFromReplay(serializer, player))
+                return null;
+            if (i == 1 && player == game.getPlayer(1)) {
+                copies[1] = copies[0];
+                continue;
+            }
+            if (searchBrains[i] == null) {
+                synchronized (player) {
+                    synchronized (serializer) {
+                        searchBrains[i] = (Player) serializer.fromBytes(serializer.toBytes(player));
+                    }
+                }
+            }
+            copies[i] = searchBrains[i];
+        }
+        Game copy = new Game(copies[0], copies[1]);
+        BrainReplicas.replay(copy, moves);
+        // A game restored without its moves can't be copied.
+        return copy.board() == game.board() ? copy : null;
+    }
+
+    private void clearSearchBrains() {
+        searchBrains[0] = null;
+        searchBrains[1] = null;
+        ponderState = null;
+    }
+
+    /**
+     * Searches on the AI executor for the AI's move in {@code copy}, then plays it in the game on the owner thread.
+     */
+    private void searchOnCopy(final Game copy) {
+        final int generation = aiGeneration.get();
+        final Search current = new Search();
+        searching = true;
+        search = current;
+        ai.execute(new Runnable() {
+            @Override
+            public void run() {
+                int cell = -1;
+                try {
+                    if (aiGeneration.get() != generation) {
+                        aiSkipped.increment();
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    int before = copy.board();
+                    copy.run(1);
+                    recordMoveTime(start);
+                    for (int i = 0; i < 9; i++)
+                        if (Board.get(before, i / 3, i % 3) == 0 && Board.get(copy.board(), i / 3, i % 3) != 0)
+                            cell = i;
+                } catch (RuntimeException e) {
+                    sink.error("Error playing AI move", e);
+                } finally {
+                    current.finished();
+                }
+                final int move = cell;
+                owner.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        searchDone(generation, move);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Plays the move of a search unless it was cancelled. A failed search plays nothing and leaves the AI to move, as
+     * a failed search in the game does.
+     */
+    private void searchDone(int generation, int cell) {
+        if (!searching || aiGeneration.get() != generation)
+            return;
+        aiGeneration.incrementAndGet();
+        searching = false;
+        search = null;
+        if (cell >= 0 && Board.get(game.board(), cell / 3, cell % 3) == 0) {
+            game.play(cell / 3, cell % 3, game.getCurrentPlayer());
+            moveDone();
+        } else
+            sendSetInput();
+        runDeferred();
+    }
+
+    private static void recordMoveTime(long start) {
+        long elapsed = System.nanoTime() - start;
+        aiMoveTime.record(elapsed);
+        if (elapsed > AI_BUDGET_MS * 1000000)
+            aiOverruns.increment();
+    }
+
+    /**
+     * Drops a search in progress along with the moves waiting for it.
+     */
+    private void cancelSearch() {
+        if (!searching)
+            return;
+        aiGeneration.incrementAndGet();
+        searching = false;
+        search.drop();
+        search = null;
+        deferred.clear();
+    }
+
+    /**
+     * A search on a copy of the game. It draws from Player.prng as the AI's move in the game would, so it only
+     * registers with ReplayLog if it is dropped while it still runs.
+     */
+    private static final class Search {
+        private boolean running = true;
+        private ReplayLog.PrngUse dropped = null;
+
+        synchronized void drop() {
+            if (running && dropped == null)
+                dropped = ReplayLog.usePrng();
+        }
+
+        synchronized void finished() {
+            running = false;
+            if (dropped != null)
+                dropped.close();
+        }
+    }
+
+    /**
+     * Searches in the game itself on the AI executor; the game and brains belong to that thread until the move is
+     * done.
+     */
+    private void searchInGame() {
+        final Game target = game;
+        final int generation = aiGeneration.get();
+        thinking = true;
+        storage.holdBrains(true);
+        ai.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean played = false;
+                try {
+                    if (aiGeneration.get() != generation) {
+                        aiSkipped.increment();
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    target.run(1);
+                    played = true;
+                    recordMoveTime(start);
+                } catch (RuntimeException e) {
+                    sink.error("Error playing AI move", e);
+                } finally {
+                    final boolean done = played;
+                    owner.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            aiDone(done);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void aiDone(boolean played) {
+        thinking = false;
+        if (played)
+            moveDone();
+        else
+            sendSetInput();
+        storage.holdBrains(false);
+        runDeferred();
+    }
+
+    /**
+     * While the human is to move, works out on the AI executor how the AI would answer each possible move, each on
+     * its own copy of the game. A learning brain is pondered with copies, as it searches with them, and a reply it
+     * picked is then played in the game, which the brain learns from as its copy would have; a brain that fails
+     * {@link BrainReplicas#learnsFromReplay} has to make the moves it learns from, so it isn't pondered.
+     */
+    private void startPondering() {
+        final int aiSeat = 3 - game.getCurrentPlayer();
+        final Player opponent = game.getPlayer(aiSeat);
+        if (opponent == null)
+            return;
+        if (opponent.saveable() && ponderState == null) {
+            if (!BrainReplicas.learnsFromReplay(serializer, opponent))
+                return;
+            synchronized (opponent) {
+                synchronized (serializer) {
+                    ponderState = serializer.toBytes(opponent);
+                }
+            }
+        }
+        final byte[] brainState = opponent.saveable() ? ponderState : null;
+        final long position = moves;
+        final int board = game.board();
+        final int generation = ponderGeneration.get();
+        ai.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                int[] replies = new int[10];
+                ReplayLog.PrngUse prng = ReplayLog.usePrng();
+                try {
+                    // A copy of a learning brain is used until it learns from a game its reply finished.
+                    Player brain = null;
+                    for (int cell = 0; cell < 9; cell++) {
+                        if (ponderGeneration.get() != generation) {
+                            ponderDiscarded.increment();
+                            return;
+                        }
+                        replies[cell] = -1;
+                        if (Board.get(board, cell / 3, cell % 3) != 0)
+                            continue;
+                        if (brainState == null)
+                            brain = opponent;
+                        else if (brain == null) {
+                            synchronized (serializer) {
+                                brain = (Player) serializer.fromBytes(brainState);
+                            }
+                        }
+                        Game copy = aiSeat == 1 ? new Game(brain, null) : new Game(null, brain);
+                        BrainReplicas.replay(copy, position);
+                        // A game restored without its moves can't be copied.
+                        if (copy.board() != board)
+                            return;
+                        copy.play(cell / 3, cell % 3, copy.getCurrentPlayer());
+                        if (copy.status() != Game.PLAYING)
+                            continue;
+                        copy.run(1);
+                        for (int i = 0; i < 9; i++)
+                            if (Board.get(board, i / 3, i % 3) == 0 && i != cell
+                                    && Board.get(copy.board(), i / 3, i % 3) != 0)
+                                replies[cell] = i;
+                        if (copy.status() != Game.PLAYING && brainState != null)
+                            brain = null;
+                    }
+                } catch (RuntimeException e) {
+                    sink.error("Error pondering", e);
+                    return;
+                } finally {
+                    prng.close();
+                }
+                replies[9] = generation;
+                pondered = replies;
+                ponderTime.recordSince(start);
+            }
+        });
+    }
+
+    /**
+     * Ends the current wait: pondering still in progress is abandoned.
+     *
+     * @return the pondered replies for the wait, or null if they weren't ready
+     */
+    private int[] takePondered() {
+        int[] replies = pondered;
+        int generation = ponderGeneration.getAndIncrement();
+        pondered = null;
+        return replies != null && replies[9] == generation ? replies : null;
+    }
+
+    private void moveDone() {
+        String tallyUpdate = null;
+        moves = PackedMoves.append(moves, game.board());
+        if (game.status() != Game.PLAYING) {
+            storage.brainChanged(players[0]);
+            if (players[0] != players[1])
+                storage.brainChanged(players[1]);
+            lastResult = game.status();
+            storage.gameFinished(selectedPlayers[0], selectedPlayers[1], lastResult, moves);
+            if (replayable && ReplayLog.prngQuietSince(replayToken)) {
+                try {
+                    replayLog.game(selectedPlayers[0], selectedPlayers[1], gameSeed, moves, lastResult);
+                } catch (IOException e) {
+                    replayLogFailed(e);
+                }
+            } else if (replayLog != null) {
+                // The brains learned from a game the log doesn't have.
+                replayLog.forget(selectedPlayers[0]);
+                replayLog.forget(selectedPlayers[1]);
+                unloggedGames.increment();
+            }
+            replayable = false;
+            tally[lastResult == Game.P1_WIN ? 0 : lastResult == Game.P2_WIN ? 1 : 2]++;
+            tallyUpdate = formatResults();
+        }
+        sendUpdate(tallyUpdate);
+        sendSetInput();
+    }
+
+    private void sendUpdate(String tallyUpdate) {
+        sink.board(game.board());
+        if (tallyUpdate != null)
+            sink.tally(tallyUpdate);
+    }
+
+    private void sendSetInput() {
+        int nextState = WAIT_TAP;
+        int waitingPlayer = 0;
+        if (game.status() == Game.PLAYING) {
+            if (game.getPlayer() == null) {
+                nextState = WAIT_MOVE;
+                waitingPlayer = game.getCurrentPlayer();
+            }
+        } else
+            waitingPlayer = 3;
+        sink.input(nextState, waitingPlayer);
+        takePondered();
+        if (nextState == WAIT_MOVE)
+            startPondering();
+    }
+
+    /**
+     * @return the tally text, formatted again only when the result or a counter has changed
+     */
+    private String formatResults() {
+        if (tallyText != null && shownResult == lastResult && shownTally[0] == tally[0] && shownTally[1] == tally[1] && shownTally[2] == tally[2])
+            return tallyText;
+        shownResult = lastResult;
+        System.arraycopy(tally, 0, shownTally, 0, 3);
+        return tallyText = String.format("Result: %s\nP1 win: %d\nP2 win: %d\nDraw:   %d", lastResult == Game.DRAW ? "Draw" : lastResult == Game.P1_WIN ? "P1 Win" : lastResult == Game.P2_WIN ? "P2 Win" : "", tally[0], tally[1], tally[2]);
+    }
+}
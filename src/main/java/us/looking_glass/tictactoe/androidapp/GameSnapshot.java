@@ -0,0 +1,37 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+/**
+ * Immutable copy of the persistent state of a matchup: the selected players, the encoded game and tally and the
+ * last result. Taking one costs two small encodes on the game thread; writing it can then happen on any thread.
+ */
+public final class GameSnapshot {
+    public final long p1id;
+    public final long p2id;
+    public final byte[] game;
+    public final byte[] tally;
+    public final byte lastResult;
+
+    public GameSnapshot(long p1id, long p2id, byte[] game, byte[] tally, byte lastResult) {
+        this.p1id = p1id;
+        this.p2id = p2id;
+        this.game = game;
+        this.tally = tally;
+        this.lastResult = lastResult;
+    }
+}
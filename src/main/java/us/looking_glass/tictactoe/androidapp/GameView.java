@@ -18,6 +18,7 @@ package us.looking_glass.tictactoe.androidapp;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PointF;
@@ -35,8 +36,12 @@ public class GameView extends View {
     float barOffset;
     final float strokeWidth;
     private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint[] cellPaints = new Paint[4];
     float[] boxEdges = new float[4];
     private int board = 0;
+    // Grid lines, drawn once per size and composited over the cells.
+    private Bitmap gridLayer = null;
+    private boolean partialInvalidate = true;
     final static boolean debug = false;
     private final static String TAG = "TicTacToe:GameView";
     private final static int[] colors = new int[] { 0xff700000, 0xff000070, 0xffff0000, 0xff0000ff };
@@ -60,6 +65,10 @@ public class GameView extends View {
             } catch (NullPointerException e) {
             }
         paint.setStrokeWidth(strokeWidth);
+        for (int i = 0; i < cellPaints.length; i++) {
+            cellPaints[i] = new Paint(Paint.ANTI_ALIAS_FLAG);
+            cellPaints[i].setColor(colors[i]);
+        }
     }
 
     @Override
@@ -107,21 +116,30 @@ public class GameView extends View {
 
     @Override
     protected  void onDraw(Canvas canvas) {
+        boolean marked = Board.isMarked(board);
         for (int x = 0; x < 3; x++) {
             for (int y = 0; y < 3; y++) {
                 int player = Board.get(board, x, y);
-                if (player == 0)
+                if (player == 0 || canvas.quickReject(boxEdges[x], boxEdges[y], boxEdges[x + 1], boxEdges[y + 1], Canvas.EdgeType.AA))
                     continue;
-                player += (!Board.isMarked(board) || Board.getMark(board, x, y)) ? 1 : -1;
-                paint.setColor(colors[player]);
-                canvas.drawRect(boxEdges[x], boxEdges[y], boxEdges[x + 1], boxEdges[y + 1], paint);
+                player += (!marked || Board.getMark(board, x, y)) ? 1 : -1;
+                canvas.drawRect(boxEdges[x], boxEdges[y], boxEdges[x + 1], boxEdges[y + 1], cellPaints[player]);
             }
         }
-        paint.setColor(0xffffffff);
-        canvas.drawLine(barOffset, 0, barOffset, width, paint);
-        canvas.drawLine(width - barOffset, 0, width - barOffset, width, paint);
-        canvas.drawLine(0, barOffset, width, barOffset, paint);
-        canvas.drawLine(0, width - barOffset, width, width - barOffset, paint);
+        if (width <= 0)
+            return;
+        if (gridLayer == null || gridLayer.getWidth() != width) {
+            if (gridLayer != null)
+                gridLayer.recycle();
+            gridLayer = Bitmap.createBitmap(width, width, Bitmap.Config.ARGB_8888);
+            Canvas gridCanvas = new Canvas(gridLayer);
+            paint.setColor(0xffffffff);
+            gridCanvas.drawLine(barOffset, 0, barOffset, width, paint);
+            gridCanvas.drawLine(width - barOffset, 0, width - barOffset, width, paint);
+            gridCanvas.drawLine(0, barOffset, width, barOffset, paint);
+            gridCanvas.drawLine(0, width - barOffset, width, width - barOffset, paint);
+        }
+        canvas.drawBitmap(gridLayer, 0, 0, null);
     }
 
     public int resolveBoardCoordinates(float x, float y) {
@@ -148,8 +166,38 @@ public class GameView extends View {
         return board;
     }
 
+    /**
+     * Sets the board to display and invalidates the cells that changed, or the whole view when partial invalidation
+     * is off or the winning line marks appeared or disappeared, since those change the color of every cell.
+     */
     public void setContents(int contents) {
+        int previous = board;
         this.board = contents;
+        if (previous == contents)
+            return;
+        boolean marked = Board.isMarked(contents);
+        if (!partialInvalidate || marked != Board.isMarked(previous)) {
+            invalidate();
+            return;
+        }
+        for (int x = 0; x < 3; x++)
+            for (int y = 0; y < 3; y++)
+                if (Board.get(previous, x, y) != Board.get(contents, x, y)
+                        || (marked && Board.getMark(previous, x, y) != Board.getMark(contents, x, y)))
+                    invalidate((int) boxEdges[x], (int) boxEdges[y], (int) Math.ceil(boxEdges[x + 1]), (int) Math.ceil(boxEdges[y + 1]));
+    }
+
+    public void setPartialInvalidate(boolean partialInvalidate) {
+        this.partialInvalidate = partialInvalidate;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (gridLayer != null) {
+            gridLayer.recycle();
+            gridLayer = null;
+        }
     }
 
     private static final void Logd(String text, Object... args) {
@@ -5,8 +5,6 @@ import android.os.Handler;
 import android.view.View;
 
 import us.looking_glass.tictactoe.Game;
-import us.looking_glass.tictactoe.OptimalPlayer;
-import us.looking_glass.tictactoe.Player;
 
 /**
  * Copyright 2013 Andrew Mahone
@@ -25,17 +23,35 @@ import us.looking_glass.tictactoe.Player;
  */
 public class HowAboutANiceGameOfChess implements Runnable, View.OnClickListener {
     int touchCount = 0;
-    private Player p = new OptimalPlayer();
+    // Both sides play from the shared perfect play table instead of each dialog solving the game again.
+    private PerfectPlay p;
+    // Own stream, so the demo doesn't share Player.prng with the game.
+    private SplitRandom random;
     private Game g;
     final private GameView v;
     final private Dialog d;
     final private GameActivity a;
     private int delay = 1000;
+    private final DisplayChannel display;
 
     HowAboutANiceGameOfChess(Dialog d, GameActivity a) {
         this.d = d;
         this.v = (GameView) d.getWindow().findViewById(R.id.aboutIcon);
         this.a = a;
+        display = new DisplayChannel("demo", a.handler, new DisplayChannel.Sink() {
+            @Override
+            public void showBoard(int board) {
+                HowAboutANiceGameOfChess.this.v.setContents(board);
+            }
+
+            @Override
+            public void showTally(CharSequence tally) {
+            }
+
+            @Override
+            public void showInput(int state, int waitingPlayer) {
+            }
+        });
         v.setOnClickListener(this);
     }
 
@@ -49,7 +65,7 @@ public class HowAboutANiceGameOfChess implements Runnable, View.OnClickListener
             case 5:
                 break;
         }
-        g = new Game(p, p);
+        g = new Game(null, null);
         v.setOnClickListener(null);
         postBoardUpdate();
         a.bgHandler.post(this);
@@ -60,28 +76,27 @@ public class HowAboutANiceGameOfChess implements Runnable, View.OnClickListener
         int extra = 0;
         if (!d.isShowing())
             return;
+        if (p == null) {
+            p = TicTacToeApp.app().perfectPlay();
+            random = TicTacToeApp.app().random(SplitRandom.STREAM_DEMO);
+        }
         if (g == null || g.status() != Game.PLAYING) {
             delay = Math.max(delay * 85 / 100, 40);
-            g = new Game(p, p);
+            g = new Game(null, null);
         } else if (g.turn() == 0) {
-            int m = Player.prng.nextInt(9);
+            int m = random.nextInt(9);
             g.play(m / 3, m % 3, 1);
-        } else
-            g.run(1);
+        } else {
+            int m = p.bestMove(g.board(), random.nextInt(9));
+            g.play(m / 3, m % 3, g.getCurrentPlayer());
+        }
         if (g.status() != Game.PLAYING) extra = 150;
         postBoardUpdate();
         a.bgHandler.postDelayed(this, delay + extra);
     }
 
     private void postBoardUpdate() {
-        final int contents = g.board();
-        a.handler.post(new Runnable() {
-            @Override
-            public void run() {
-                v.setContents(contents);
-                v.invalidate();
-            }
-        });
+        display.board(g.board());
     }
 
     private void doTouch() {
@@ -0,0 +1,487 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link RecordStore} in a single append-only file, memory mapped, with an index of every live record in memory.
+ * The file is the header 'T' 'L' 'S' and the format version, then frames: the payload length, the CRC32 of the
+ * payload and the payload, a sequence of records. A record is its kind, its key, the value length, -1 for a removed
+ * appstate key, and the value. Each {@link #write} appends one frame, so a batch is committed as a whole, appstate
+ * values included; a zero length after the last frame marks the end. Opening the file scans the frames into the
+ * index and stops at the first one that is incomplete or fails its CRC. Numbers are big endian.
+ * <p/>
+ * Writes go to the mapping, so they survive the process but only reach the disk on {@link #sync()} or whenever the
+ * system writes the pages back. Superseded records stay in the file until, once it has grown past
+ * {@code minCompactBytes} with less than half of it live, a compaction on the given executor copies the live records
+ * to a new file and swaps it in. Writers only wait for the swap and the copy of what they appended meanwhile.
+ */
+public final class LogRecordStore implements RecordStore {
+    private static final byte[] HEADER = { 'T', 'L', 'S', 1 };
+    static final byte BRAIN = 1;
+    static final byte STATE = 2;
+    static final byte GAME = 3;
+    private static final int FRAME_HEADER = 8;
+    private static final int MIN_CAPACITY = 1 << 20;
+    // Compaction packs live records into frames of about this size.
+    private static final int COMPACT_FRAME = 1 << 16;
+    private static final Metrics.Histogram writeTime = Metrics.histogram("store.log.write", "ns");
+    private static final Metrics.Histogram compactTime = Metrics.histogram("store.log.compact", "ns");
+    private static final Metrics.Counter compactions = Metrics.counter("store.log.compactions");
+    private static final Metrics.Counter compactFailures = Metrics.counter("store.log.compactFailures");
+    private static final Metrics.Counter tornFrames = Metrics.counter("store.log.tornFrames");
+
+    private final File file;
+    private final Executor compactor;
+    private final int minCompactBytes;
+    private final Object compactLock = new Object();
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private Index index = new Index();
+    private int end;
+    private boolean compacting = false;
+    private boolean closed = false;
+
+    public LogRecordStore(File file, Executor compactor) throws IOException {
+        this(file, compactor, 4 * MIN_CAPACITY);
+    }
+
+    public LogRecordStore(File file, Executor compactor, int minCompactBytes) throws IOException {
+        this.file = file;
+        this.compactor = compactor;
+        this.minCompactBytes = minCompactBytes;
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE / 2)
+                throw new IOException("Record log too large: " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity(MIN_CAPACITY, (int) size + FRAME_HEADER));
+            if (size == 0) {
+                buffer.put(HEADER);
+            } else {
+                for (int i = 0; i < HEADER.length; i++)
+                    if (size < HEADER.length || buffer.get(i) != HEADER[i])
+                        throw new IOException("Not a record log: " + file);
+            }
+            end = scan(buffer, HEADER.length, index);
+            buffer.putInt(end, 0);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized byte[] readBrain(long id) {
+        checkOpen();
+        return value(index.brains.get(id));
+    }
+
+    @Override
+    public synchronized byte[] readState(String key) {
+        checkOpen();
+        return value(index.states.get(key));
+    }
+
+    @Override
+    public synchronized GameSnapshot readGame(long p1id, long p2id) {
+        checkOpen();
+        byte[] value = value(index.games.get(gameKey(p1id, p2id)));
+        if (value == null)
+            return null;
+        ByteBuffer in = ByteBuffer.wrap(value);
+        byte lastResult = in.get();
+        return new GameSnapshot(p1id, p2id, blob(in), blob(in), lastResult);
+    }
+
+    /**
+     * Appends the batch as one frame.
+     */
+    @Override
+    public synchronized void write(Batch batch) throws IOException {
+        checkOpen();
+        if (batch.isEmpty())
+            return;
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Map.Entry<Long, byte[]> entry : batch.brains.entrySet()) {
+            out.writeByte(BRAIN);
+            out.writeLong(entry.getKey());
+            writeBlob(out, entry.getValue());
+        }
+        for (Map.Entry<String, byte[]> entry : batch.states.entrySet()) {
+            out.writeByte(STATE);
+            out.writeUTF(entry.getKey());
+            writeBlob(out, entry.getValue());
+        }
+        for (GameSnapshot snapshot : batch.games) {
+            out.writeByte(GAME);
+            out.writeLong(snapshot.p1id);
+            out.writeLong(snapshot.p2id);
+            out.writeInt(1 + blobSize(snapshot.game) + blobSize(snapshot.tally));
+            out.writeByte(snapshot.lastResult);
+            writeBlob(out, snapshot.game);
+            writeBlob(out, snapshot.tally);
+        }
+        out.flush();
+        byte[] payload = bytes.toByteArray();
+        int frame = end;
+        reserve(frame + FRAME_HEADER + payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer target = buffer.duplicate();
+        target.position(frame + FRAME_HEADER);
+        target.put(payload);
+        buffer.putInt(frame + 4, (int) crc.getValue());
+        buffer.putInt(end = frame + FRAME_HEADER + payload.length, 0);
+        buffer.putInt(frame, payload.length);
+        indexFrame(buffer, frame + FRAME_HEADER, end, index);
+        writeTime.recordSince(start);
+        if (!compacting && end >= minCompactBytes && end - HEADER.length > 2 * index.live) {
+            compacting = true;
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        compactFailures.increment();
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void sync() {
+        checkOpen();
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        buffer.force();
+        raf.close();
+    }
+
+    /**
+     * @return the bytes used in the file, live or not
+     */
+    public synchronized int size() {
+        return end;
+    }
+
+    /**
+     * @return the bytes of the live records
+     */
+    public synchronized long liveBytes() {
+        return index.live;
+    }
+
+    /**
+     * Rewrites the file with only the live records, on the calling thread. Writes may continue meanwhile.
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            compactLocked();
+        }
+    }
+
+    private void compactLocked() throws IOException {
+        long start = System.nanoTime();
+        MappedByteBuffer source;
+        int copied;
+        Index live;
+        synchronized (this) {
+            if (closed) {
+                compacting = false;
+                return;
+            }
+            compacting = true;
+            source = buffer;
+            copied = end;
+            live = index.copy();
+        }
+        File tmp = new File(file.getPath() + ".compact");
+        tmp.delete();
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        boolean swapped = false;
+        try {
+            FileChannel outChannel = out.getChannel();
+            MappedByteBuffer target = outChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    capacity(MIN_CAPACITY, (int) Math.min(Integer.MAX_VALUE / 2, HEADER.length + live.live
+                            + (long) FRAME_HEADER * live.count() + FRAME_HEADER)));
+            target.put(HEADER);
+            Index compacted = new Index();
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(COMPACT_FRAME);
+            int pos = HEADER.length;
+            for (Entry entry : live.entries()) {
+                byte[] record = new byte[entry.value + entry.length - entry.record];
+                ByteBuffer in = source.duplicate();
+                in.position(entry.record);
+                in.get(record);
+                frame.write(record);
+                if (frame.size() >= COMPACT_FRAME) {
+                    pos = putFrame(target, pos, frame.toByteArray(), compacted);
+                    frame.reset();
+                }
+            }
+            if (frame.size() > 0)
+                pos = putFrame(target, pos, frame.toByteArray(), compacted);
+            target.force();
+            synchronized (this) {
+                if (closed)
+                    return;
+                // Bring over what was appended since the copy started; scanning it replays its records over the
+                // copied ones.
+                int tail = end - copied;
+                if (target.capacity() < pos + tail + FRAME_HEADER)
+                    target = outChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity(target.capacity(), pos + tail + FRAME_HEADER));
+                ByteBuffer in = buffer.duplicate();
+                in.position(copied);
+                in.limit(end);
+                ByteBuffer at = target.duplicate();
+                at.position(pos);
+                at.put(in);
+                int newEnd = scan(target, pos, compacted);
+                target.putInt(newEnd, 0);
+                target.force();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Can't replace " + file + " with " + tmp);
+                swapped = true;
+                raf.close();
+                raf = out;
+                channel = outChannel;
+                buffer = target;
+                index = compacted;
+                end = newEnd;
+            }
+            compactions.increment();
+            compactTime.recordSince(start);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            if (!swapped) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Record log closed: " + file);
+    }
+
+    private void reserve(int needed) throws IOException {
+        if (needed + FRAME_HEADER > buffer.capacity())
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity(buffer.capacity(), needed + FRAME_HEADER));
+    }
+
+    private byte[] value(Entry entry) {
+        if (entry == null)
+            return null;
+        byte[] result = new byte[entry.length];
+        ByteBuffer in = buffer.duplicate();
+        in.position(entry.value);
+        in.get(result);
+        return result;
+    }
+
+    private static int capacity(int capacity, int needed) throws IOException {
+        if (needed > Integer.MAX_VALUE / 2)
+            throw new IOException("Record log full");
+        while (capacity < needed)
+            capacity *= 2;
+        return capacity;
+    }
+
+    private static int putFrame(MappedByteBuffer target, int pos, byte[] payload, Index index) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        target.putInt(pos, payload.length);
+        target.putInt(pos + 4, (int) crc.getValue());
+        ByteBuffer at = target.duplicate();
+        at.position(pos + FRAME_HEADER);
+        at.put(payload);
+        indexFrame(target, pos + FRAME_HEADER, pos + FRAME_HEADER + payload.length, index);
+        return pos + FRAME_HEADER + payload.length;
+    }
+
+    /**
+     * Indexes the frames from {@code pos} up to the end marker or the first damaged frame.
+     *
+     * @return the end of the last good frame
+     */
+    private static int scan(ByteBuffer buffer, int pos, Index index) throws IOException {
+        int capacity = buffer.capacity();
+        CRC32 crc = new CRC32();
+        while (pos + FRAME_HEADER <= capacity) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || length > capacity - pos - FRAME_HEADER)
+                break;
+            byte[] payload = new byte[length];
+            ByteBuffer in = buffer.duplicate();
+            in.position(pos + FRAME_HEADER);
+            in.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+                tornFrames.increment();
+                break;
+            }
+            indexFrame(buffer, pos + FRAME_HEADER, pos + FRAME_HEADER + length, index);
+            pos += FRAME_HEADER + length;
+        }
+        return pos;
+    }
+
+    private static void indexFrame(ByteBuffer buffer, int start, int end, Index index) throws IOException {
+        ByteBuffer in = buffer.duplicate();
+        in.position(start);
+        in.limit(end);
+        try {
+            while (in.hasRemaining()) {
+                int record = in.position();
+                byte kind = in.get();
+                Object key;
+                switch (kind) {
+                    case BRAIN:
+                        key = in.getLong();
+                        break;
+                    case STATE:
+                        byte[] utf = new byte[2 + (in.getShort(in.position()) & 0xffff)];
+                        in.get(utf);
+                        key = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+                        break;
+                    case GAME:
+                        key = gameKey(in.getLong(), in.getLong());
+                        break;
+                    default:
+                        throw new IOException("Unknown record kind " + kind + " at " + record);
+                }
+                int length = in.getInt();
+                int value = in.position();
+                if (length > 0)
+                    in.position(value + length);
+                index.put(kind, key, length < 0 ? null : new Entry(record, value, length));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated record in frame at " + (start - FRAME_HEADER));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Truncated record in frame at " + (start - FRAME_HEADER));
+        }
+    }
+
+    private static String gameKey(long p1id, long p2id) {
+        return p1id + ":" + p2id;
+    }
+
+    private static int blobSize(byte[] blob) {
+        return 4 + (blob == null ? 0 : blob.length);
+    }
+
+    private static void writeBlob(DataOutputStream out, byte[] blob) throws IOException {
+        if (blob == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(blob.length);
+            out.write(blob);
+        }
+    }
+
+    private static byte[] blob(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        byte[] result = new byte[length];
+        in.get(result);
+        return result;
+    }
+
+    private static class Entry {
+        final int record;
+        final int value;
+        final int length;
+
+        Entry(int record, int value, int length) {
+            this.record = record;
+            this.value = value;
+            this.length = length;
+        }
+    }
+
+    private static class Index {
+        final Map<Long, Entry> brains = new HashMap<Long, Entry>();
+        final Map<String, Entry> states = new HashMap<String, Entry>();
+        final Map<String, Entry> games = new HashMap<String, Entry>();
+        long live = 0;
+
+        void put(byte kind, Object key, Entry entry) {
+            Entry old;
+            if (kind == BRAIN)
+                old = entry == null ? brains.remove(key) : brains.put((Long) key, entry);
+            else if (kind == STATE)
+                old = entry == null ? states.remove(key) : states.put((String) key, entry);
+            else
+                old = entry == null ? games.remove(key) : games.put((String) key, entry);
+            if (old != null)
+                live -= old.value + old.length - old.record;
+            if (entry != null)
+                live += entry.value + entry.length - entry.record;
+        }
+
+        int count() {
+            return brains.size() + states.size() + games.size();
+        }
+
+        List<Entry> entries() {
+            List<Entry> result = new ArrayList<Entry>(count());
+            result.addAll(brains.values());
+            result.addAll(states.values());
+            result.addAll(games.values());
+            return result;
+        }
+
+        Index copy() {
+            Index result = new Index();
+            result.brains.putAll(brains);
+            result.states.putAll(states);
+            result.games.putAll(games);
+            result.live = live;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays complete AI-vs-AI games between two entries of the brains table without any UI, spread over a pool of
+ * worker threads. Each worker plays on its own copies of the brains, deserialized from the stored state, so the
+ * instances shared with the interactive game are never touched and nothing learned during evaluation is saved.
+ * Results are merged into the tally of the matching row in the game table, and into the brains' {@link Ratings},
+ * every {@code batchSize} games.
+ * <p/>
+ * Games are played in chunks, each with its own {@link SplitRandom} split from the master in submission order, which
+ * the random openings draw from. The brains choose their moves inside the library, from its static
+ * {@link Player#prng}, which every worker shares; their moves are not reproducible from the seed.
+ */
+public class MatchEngine {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:MatchEngine";
+    private final static int CHUNK_SIZE = 64;
+
+    public interface Listener {
+        void onProgress(long played, long[] tally, double gamesPerSecond);
+        void onComplete(long played, long[] tally, double gamesPerSecond);
+    }
+
+    private final TicTacToeApp app;
+    private final long p1id;
+    private final long p2id;
+    private final int threads;
+    private final int batchSize;
+    private boolean randomOpenings = false;
+    private boolean writeTally = true;
+    private Long seed = null;
+    private volatile boolean cancelled = false;
+
+    public MatchEngine(TicTacToeApp app, long p1id, long p2id) {
+        this(app, p1id, p2id, Runtime.getRuntime().availableProcessors(), 1000);
+    }
+
+    public MatchEngine(TicTacToeApp app, long p1id, long p2id, int threads, int batchSize) {
+        if (threads < 1 || batchSize < 1)
+            throw new IllegalArgumentException(String.format("Invalid engine configuration: %d threads, batch size %d", threads, batchSize));
+        this.app = app;
+        this.p1id = p1id;
+        this.p2id = p2id;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Opens every game with a uniformly random move by player 1, so deterministic brains don't replay the same game.
+     */
+    public MatchEngine setRandomOpenings(boolean randomOpenings) {
+        this.randomOpenings = randomOpenings;
+        return this;
+    }
+
+    /**
+     * Seeds the random openings, so that a rerun opens every game the same way. Without a seed they come from the
+     * app's saved master seed.
+     */
+    public MatchEngine setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Whether results are merged into the game table's tally; the ratings are updated either way. The app turns it
+     * off for the matchups of its interactive session, which owns their tally and adds the results itself.
+     */
+    public MatchEngine setWriteTally(boolean writeTally) {
+        this.writeTally = writeTally;
+        return this;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Plays {@code games} games, blocking the calling thread until they are finished or the engine is cancelled.
+     * The listener, if any, is called on the calling thread after each batch is written.
+     *
+     * @return the tally of this run: player 1 wins, player 2 wins, draws
+     */
+    public long[] run(long games, Listener listener) throws InterruptedException {
+        final byte[] p1State = app.getPlayerState(p1id);
+        final byte[] p2State = app.getPlayerState(p2id);
+        if (p1State == null || p2State == null)
+            throw new IllegalArgumentException(String.format("Both brains need AI state: #%d, #%d", p1id, p2id));
+        final ThreadLocal<Player[]> workerPlayers = new ThreadLocal<Player[]>() {
+            @Override
+            protected Player[] initialValue() {
+                Player p1 = (Player) app.fromBytes(p1State);
+                Player p2 = p1id == p2id ? p1 : (Player) app.fromBytes(p2State);
+                return new Player[] { p1, p2 };
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TicTacToeMatch-" + count.incrementAndGet());
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        CompletionService<long[]> completion = new ExecutorCompletionService<long[]>(pool);
+        SplitRandom master = seed != null ? new SplitRandom(seed) : app.random(SplitRandom.STREAM_MATCH);
+        int chunks = 0;
+        for (long remaining = games; remaining > 0; remaining -= CHUNK_SIZE, chunks++) {
+            final int count = (int) Math.min(remaining, CHUNK_SIZE);
+            // Split in submission order, so each chunk's openings don't depend on which thread plays it.
+            final SplitRandom random = master.split();
+            completion.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() {
+                    // Registered for as long as the worker draws from Player.prng, which may outlast run().
+                    ReplayLog.PrngUse prng = ReplayLog.usePrng();
+                    try {
+                        return playChunk(workerPlayers.get(), count, random);
+                    } finally {
+                        prng.close();
+                    }
+                }
+            });
+        }
+        long[] total = new long[4];
+        long[] pending = new long[4];
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < chunks && !cancelled; i++) {
+                long[] result;
+                try {
+                    result = completion.take().get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Match worker failed", e.getCause());
+                }
+                for (int j = 0; j < 3; j++)
+                    pending[j] += result[j];
+                if (result[0] + result[1] + result[2] > 0)
+                    pending[3] = result[3];
+                if (pending[0] + pending[1] + pending[2] >= batchSize) {
+                    writeResults(pending, total);
+                    if (listener != null)
+                        listener.onProgress(total[0] + total[1] + total[2], new long[] { total[0], total[1], total[2] }, rate(total, start));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            if (pending[0] + pending[1] + pending[2] > 0)
+                writeResults(pending, total);
+        }
+        long played = total[0] + total[1] + total[2];
+        double rate = rate(total, start);
+        if (debug) Logd("%d games of #%d vs #%d in %d threads: %.1f games/s", played, p1id, p2id, threads, rate);
+        long[] result = new long[] { total[0], total[1], total[2] };
+        if (listener != null)
+            listener.onComplete(played, result.clone(), rate);
+        return result;
+    }
+
+    /**
+     * @return player 1 wins, player 2 wins, draws and the result of the last game played
+     */
+    private long[] playChunk(Player[] players, int count, SplitRandom random) {
+        long[] result = new long[4];
+        for (int i = 0; i < count && !cancelled; i++) {
+            Game game = new Game(players[0], players[1]);
+            if (randomOpenings) {
+                int m = random.nextInt(9);
+                game.play(m / 3, m % 3, 1);
+            }
+            while (game.status() == Game.PLAYING)
+                game.run(1);
+            byte status = game.status();
+            result[status == Game.P1_WIN ? 0 : status == Game.P2_WIN ? 1 : 2]++;
+            result[3] = status;
+        }
+        return result;
+    }
+
+    private static double rate(long[] total, long start) {
+        long elapsed = System.nanoTime() - start;
+        return elapsed > 0 ? (total[0] + total[1] + total[2]) * 1e9 / elapsed : 0;
+    }
+
+    private void writeResults(long[] pending, long[] total) {
+        // The batch only has counts, so rate its games with the results interleaved.
+        List<long[]> games = new ArrayList<long[]>();
+        long[] left = new long[] { pending[0], pending[1], pending[2] };
+        byte[] results = new byte[] { Game.P1_WIN, Game.P2_WIN, Game.DRAW };
+        while (left[0] + left[1] + left[2] > 0)
+            for (int i = 0; i < 3; i++)
+                if (left[i] > 0) {
+                    left[i]--;
+                    games.add(new long[] { p1id, p2id, results[i] });
+                }
+        boolean committed = false;
+        app.db.beginTransaction();
+        try {
+            if (writeTally)
+                addToTally(pending);
+            app.ratings.update(games);
+            app.db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            app.db.endTransaction();
+            if (!committed)
+                app.ratings.forget();
+        }
+        for (int i = 0; i < 3; i++) {
+            total[i] += pending[i];
+            pending[i] = 0;
+        }
+        total[3] = pending[3];
+    }
+
+    private void addToTally(long[] pending) {
+        String whereString = AppDB.KEY_P1ID + "=" + Long.toString(p1id) + " AND " + AppDB.KEY_P2ID + "=" + Long.toString(p2id);
+        long[] tally = null;
+        Cursor result = app.db.query(AppDB.GAME_TABLE_NAME, AppDB.TALLY_GAME_RESULT_COLS, whereString, null, null, null, null);
+        try {
+            if (result.getCount() == 1 && result.moveToFirst())
+                tally = app.gameCodec.decodeTally(result.getBlob(result.getColumnIndexOrThrow(AppDB.KEY_TALLY)));
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading stored tally", e);
+        } finally {
+            result.close();
+        }
+        ContentValues values = new ContentValues();
+        if (tally == null || tally.length != 6) {
+            tally = new long[6];
+            values.put(AppDB.KEY_P1ID, p1id);
+            values.put(AppDB.KEY_P2ID, p2id);
+            values.put(AppDB.KEY_GAME, app.gameCodec.encodeGame(new Game(app.getPlayer(p1id), app.getPlayer(p2id)), 0));
+        }
+        for (int i = 0; i < 3; i++)
+            tally[i] += pending[i];
+        values.put(AppDB.KEY_TALLY, app.gameCodec.encodeTally(tally));
+        values.put(AppDB.KEY_RESULT, (byte) pending[3]);
+        if (values.containsKey(AppDB.KEY_GAME))
+            app.db.insert(AppDB.GAME_TABLE_NAME, null, values);
+        else
+            app.db.update(AppDB.GAME_TABLE_NAME, values, whereString, null);
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and histograms for the hot paths. Metrics are created once, normally in static fields, and
+ * recording into them only updates atomics, so it allocates nothing and is safe from any thread. A metric is
+ * identified by its name: asking for an existing name, as each instance of a class with per-instance metrics does,
+ * returns the metric already registered. Histograms use
+ * power-of-two buckets: bucket n counts values in [2^(n-1), 2^n).
+ */
+final class Metrics {
+    // In order of registration, which is the order of the dump.
+    private static final Map<String, Counter> counters = new LinkedHashMap<String, Counter>();
+    private static final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+
+    private Metrics() {
+    }
+
+    static Counter counter(String name) {
+        synchronized (counters) {
+            Counter counter = counters.get(name);
+            if (counter == null)
+                counters.put(name, counter = new Counter(name));
+            return counter;
+        }
+    }
+
+    /**
+     * @param unit the unit of recorded values, "ns" for latencies recorded from {@link System#nanoTime()}; ignored
+     * if the histogram exists already
+     */
+    static Histogram histogram(String name, String unit) {
+        synchronized (histograms) {
+            Histogram histogram = histograms.get(name);
+            if (histogram == null)
+                histograms.put(name, histogram = new Histogram(name, unit));
+            return histogram;
+        }
+    }
+
+    static void dump(PrintWriter out) {
+        synchronized (counters) {
+            for (Counter counter : counters.values())
+                out.printf("%s: %d%n", counter.name, counter.get());
+        }
+        synchronized (histograms) {
+            for (Histogram histogram : histograms.values())
+                if (histogram.count() > 0)
+                    out.println(histogram);
+        }
+        out.flush();
+    }
+
+    static void reset() {
+        synchronized (counters) {
+            for (Counter counter : counters.values())
+                counter.value.set(0);
+        }
+        synchronized (histograms) {
+            for (Histogram histogram : histograms.values())
+                histogram.reset();
+        }
+    }
+
+    static final class Counter {
+        final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        void increment() {
+            value.incrementAndGet();
+        }
+
+        void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        long get() {
+            return value.get();
+        }
+    }
+
+    static final class Histogram {
+        final String name;
+        final String unit;
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value) & 63);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            }
+        }
+
+        /**
+         * Records the time elapsed since {@code start}, a value of {@link System#nanoTime()}.
+         */
+        void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        /**
+         * @return an upper bound of the given quantile, from the bucket it falls in
+         */
+        long quantile(double q) {
+            long total = count.get();
+            long rank = (long) Math.ceil(total * q);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return i == 0 ? 0 : Math.min(i == 63 ? Long.MAX_VALUE : (1L << i) - 1, max.get());
+            }
+            return max.get();
+        }
+
+        private void reset() {
+            for (int i = 0; i < 64; i++)
+                buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long n = count.get();
+            return String.format("%s: n=%d mean=%d p50<=%d p90<=%d p99<=%d max=%d %s", name, n, n == 0 ? 0 : sum.get() / n,
+                    quantile(0.5), quantile(0.9), quantile(0.99), max.get(), unit);
+        }
+    }
+}
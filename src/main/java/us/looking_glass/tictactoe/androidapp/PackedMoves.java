@@ -0,0 +1,70 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Board;
+
+/**
+ * Move sequences packed into a long, 4 bits per move with the first move in the low bits, each holding cell
+ * x * 3 + y plus one, so an unused slot is 0.
+ */
+public final class PackedMoves {
+    private PackedMoves() {
+    }
+
+    /**
+     * Appends the cells marked on {@code board} that {@code moves} doesn't contain yet. Several new cells are taken
+     * as alternating moves, starting with the player to move after the recorded ones.
+     */
+    public static long append(long moves, int board) {
+        int count = 0;
+        int recorded = 0;
+        for (; count < 9 && (moves >>> (count * 4) & 0xf) != 0; count++)
+            recorded |= 1 << ((moves >>> (count * 4) & 0xf) - 1);
+        int[][] added = new int[2][5];
+        int[] addedCount = new int[2];
+        for (int cell = 0; cell < 9; cell++) {
+            int owner = Board.get(board, cell / 3, cell % 3);
+            if (owner != 0 && (recorded & 1 << cell) == 0 && addedCount[owner - 1] < 5)
+                added[owner - 1][addedCount[owner - 1]++] = cell;
+        }
+        int[] used = new int[2];
+        for (int next = count & 1; count < 9 && used[0] + used[1] < addedCount[0] + addedCount[1]; next ^= 1) {
+            if (used[next] == addedCount[next])
+                next ^= 1;
+            moves |= (long) (added[next][used[next]++] + 1) << (count++ * 4);
+        }
+        return moves;
+    }
+
+    /**
+     * @return the number of moves recorded
+     */
+    public static int count(long moves) {
+        int count = 0;
+        while (count < 9 && (moves >>> (count * 4) & 0xf) != 0)
+            count++;
+        return count;
+    }
+
+    /**
+     * @return the cell of the first move, or -1 if there is none
+     */
+    public static int opening(long moves) {
+        return (int) (moves & 0xf) - 1;
+    }
+}
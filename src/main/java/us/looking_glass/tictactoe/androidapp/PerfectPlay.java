@@ -0,0 +1,203 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Board;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Game-theoretic value of every position: {@link #UNREACHABLE}, {@link #P1_WIN}, {@link #P2_WIN} or {@link #DRAW}
+ * with perfect play by both sides from there. Positions are indexed by their cells as base 3 digits, cell x * 3 + y
+ * having weight 3^(x * 3 + y). The value is the same for every rotation and reflection of a position, so the table
+ * holds one 2 bit entry per {@link BoardSymmetry} class.
+ * <p/>
+ * The table is solved once per installation and saved to a file, which later launches map read-only. One table is
+ * shared by the whole process, and looking up a move costs nine reads. It is for the app's own perfect moves, such as
+ * the demo's; the library's players choose their moves themselves.
+ */
+final class PerfectPlay {
+    static final int UNREACHABLE = 0;
+    static final int P1_WIN = 1;
+    static final int P2_WIN = 2;
+    static final int DRAW = 3;
+    static final int POSITIONS = 19683;
+    private static final int SIZE = (BoardSymmetry.CLASSES + 3) / 4;
+    private static final int[] POWERS = new int[] { 1, 3, 9, 27, 81, 243, 729, 2187, 6561 };
+    private static final int[][] LINES = new int[][] {
+            { 0, 1, 2 }, { 3, 4, 5 }, { 6, 7, 8 },
+            { 0, 3, 6 }, { 1, 4, 7 }, { 2, 5, 8 },
+            { 0, 4, 8 }, { 2, 4, 6 } };
+    private static PerfectPlay instance = null;
+
+    private final ByteBuffer table;
+
+    private PerfectPlay(ByteBuffer table) {
+        this.table = table;
+    }
+
+    /**
+     * @return the shared table, mapped from {@code file} if it was saved there before, else solved and saved
+     */
+    static synchronized PerfectPlay get(File file) {
+        if (instance == null) {
+            ByteBuffer table = null;
+            if (file != null && file.length() == SIZE)
+                table = map(file);
+            if (table == null) {
+                table = ByteBuffer.wrap(solve());
+                if (file != null)
+                    save(file, table.array());
+            }
+            instance = new PerfectPlay(table);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the shared table, solved in memory if it hasn't been loaded
+     */
+    static PerfectPlay get() {
+        return get(null);
+    }
+
+    static int index(int board) {
+        int index = 0;
+        for (int i = 0; i < 9; i++)
+            index += Board.get(board, i / 3, i % 3) * POWERS[i];
+        return index;
+    }
+
+    int outcome(int index) {
+        int slot = BoardSymmetry.rank(index);
+        return table.get(slot >> 2) >> ((slot & 3) << 1) & 3;
+    }
+
+    /**
+     * A move that wins right away is preferred over one that wins later.
+     *
+     * @param random any non-negative number, to choose among equally good moves
+     * @return the cell, x * 3 + y, of a best move for the player to move, or -1 if the game is over
+     */
+    int bestMove(int board, int random) {
+        int index = index(board);
+        int player = turn(index);
+        int best = -1;
+        int bestCount = 0;
+        int[] candidates = new int[9];
+        for (int i = 0; i < 9; i++) {
+            if (index / POWERS[i] % 3 != 0)
+                continue;
+            int next = index + player * POWERS[i];
+            int rank = rank(outcome(next), player) * 2 + (winner(next) == player ? 1 : 0);
+            if (rank > best) {
+                best = rank;
+                bestCount = 0;
+            }
+            if (rank == best)
+                candidates[bestCount++] = i;
+        }
+        if (bestCount == 0 || outcome(index) == UNREACHABLE || winner(index) != 0)
+            return -1;
+        return candidates[random % bestCount];
+    }
+
+    private static int rank(int outcome, int player) {
+        return outcome == DRAW ? 1 : outcome == player ? 2 : 0;
+    }
+
+    private static int turn(int index) {
+        int count = 0;
+        for (int i = 0; i < 9; i++, index /= 3)
+            if (index % 3 != 0)
+                count++;
+        return (count & 1) + 1;
+    }
+
+    private static int winner(int index) {
+        for (int[] line : LINES) {
+            int owner = index / POWERS[line[0]] % 3;
+            if (owner != 0 && index / POWERS[line[1]] % 3 == owner && index / POWERS[line[2]] % 3 == owner)
+                return owner;
+        }
+        return 0;
+    }
+
+    private static byte[] solve() {
+        byte[] table = new byte[SIZE];
+        solve(table, 0);
+        return table;
+    }
+
+    private static int solve(byte[] table, int index) {
+        int slot = BoardSymmetry.rank(index);
+        int outcome = table[slot >> 2] >> ((slot & 3) << 1) & 3;
+        if (outcome != UNREACHABLE)
+            return outcome;
+        int winner = winner(index);
+        if (winner != 0) {
+            outcome = winner;
+        } else {
+            int player = turn(index);
+            int best = -1;
+            for (int i = 0; i < 9; i++) {
+                if (index / POWERS[i] % 3 != 0)
+                    continue;
+                int result = solve(table, index + player * POWERS[i]);
+                if (rank(result, player) > best) {
+                    best = rank(result, player);
+                    outcome = result;
+                }
+            }
+            if (best < 0)
+                outcome = DRAW;
+        }
+        table[slot >> 2] |= outcome << ((slot & 3) << 1);
+        return outcome;
+    }
+
+    private static ByteBuffer map(File file) {
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void save(File file, byte[] table) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(table);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file))
+                temp.delete();
+        } catch (IOException e) {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Player;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Thread-safe cache of deserialized brains keyed by their row ID. Brains are looked up in a hash table on primitive
+ * IDs and kept according to a retention policy:
+ * <ul>
+ * <li>{@link #RETAIN_PINNED} keeps every loaded brain for the life of the cache,</li>
+ * <li>{@link #RETAIN_LRU} keeps the most recently used brains, up to a limit, and only weakly references the rest,</li>
+ * <li>{@link #RETAIN_SOFT} keeps brains until the VM runs low on memory.</li>
+ * </ul>
+ * A brain that is still in use is never loaded twice, whatever the policy. Loading runs outside the lock, so a slow
+ * deserialization doesn't block lookups of other brains.
+ */
+class PlayerCache implements PlayerRegistry {
+    final static int RETAIN_PINNED = 0;
+    final static int RETAIN_LRU = 1;
+    final static int RETAIN_SOFT = 2;
+
+    interface Loader {
+        /**
+         * @return the brain with the given ID, or null if there is no brain or it has no AI state
+         */
+        Player load(long id);
+    }
+
+    private final Loader loader;
+    private final int retention;
+    private final int maxRetained;
+    private Entry[] table = new Entry[16];
+    private int size = 0;
+    // Sentinel of the list of strongly held entries, most recently used first.
+    private final Entry lru = new Entry(0, null);
+    private int retained = 0;
+    private final Map<Player, Long> playerToId = new WeakHashMap<Player, Long>();
+    private long hits = 0;
+    private long misses = 0;
+    private long loads = 0;
+    private long loadTime = 0;
+
+    PlayerCache(Loader loader, int retention, int maxRetained) {
+        if (retention < RETAIN_PINNED || retention > RETAIN_SOFT)
+            throw new IllegalArgumentException(String.format("Unknown retention policy %d", retention));
+        this.loader = loader;
+        this.retention = retention;
+        this.maxRetained = maxRetained;
+        lru.prev = lru.next = lru;
+    }
+
+    @Override
+    public Player getPlayer(long id) {
+        synchronized (this) {
+            Entry entry = find(id);
+            if (entry != null) {
+                Player player = entry.get();
+                if (player != null || entry.ref == null) {
+                    hits++;
+                    touch(entry, player);
+                    return player;
+                }
+            }
+            misses++;
+        }
+        long start = System.nanoTime();
+        Player loaded = loader.load(id);
+        long time = System.nanoTime() - start;
+        synchronized (this) {
+            loads++;
+            loadTime += time;
+            // Another thread may have loaded the same brain meanwhile; there must only be one instance in use.
+            Entry entry = find(id);
+            if (entry != null) {
+                Player player = entry.get();
+                if (player != null || entry.ref == null) {
+                    touch(entry, player);
+                    return player;
+                }
+            } else
+                entry = insert(id);
+            set(entry, loaded);
+            return loaded;
+        }
+    }
+
+    @Override
+    public synchronized long getPlayerID(Player player) {
+        Long id = playerToId.get(player);
+        if (id == null)
+            throw new IllegalStateException(String.format("Player not in ID index: %s", player));
+        return id;
+    }
+
+    /**
+     * Adds a brain that was created rather than loaded, replacing any cached instance with the same ID.
+     */
+    synchronized void put(long id, Player player) {
+        Entry entry = find(id);
+        if (entry == null)
+            entry = insert(id);
+        set(entry, player);
+    }
+
+    /**
+     * @return whether {@code player} is the instance the cache hands out for the ID; one that {@link #put} replaced
+     * isn't
+     */
+    synchronized boolean isCurrent(long id, Player player) {
+        Entry entry = find(id);
+        return entry != null && entry.get() == player;
+    }
+
+    /**
+     * Drops a brain so the next lookup loads it again.
+     */
+    synchronized void invalidate(long id) {
+        int index = index(id, table.length);
+        for (Entry entry = table[index], prev = null; entry != null; prev = entry, entry = entry.chain) {
+            if (entry.id != id)
+                continue;
+            if (prev == null)
+                table[index] = entry.chain;
+            else
+                prev.chain = entry.chain;
+            unlink(entry);
+            size--;
+            return;
+        }
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long loads() {
+        return loads;
+    }
+
+    /**
+     * @return total time spent loading brains, in nanoseconds
+     */
+    synchronized long loadTime() {
+        return loadTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PlayerCache[%d entries, %d retained, %d hits, %d misses, %d loads in %dms]", size,
+                retention == RETAIN_LRU ? retained : size, hits, misses, loads, loadTime / 1000000);
+    }
+
+    private static int index(long id, int length) {
+        int hash = (int) (id ^ (id >>> 32));
+        hash ^= (hash >>> 16);
+        return hash & (length - 1);
+    }
+
+    private Entry find(long id) {
+        for (Entry entry = table[index(id, table.length)]; entry != null; entry = entry.chain)
+            if (entry.id == id)
+                return entry;
+        return null;
+    }
+
+    private Entry insert(long id) {
+        if (size >= table.length * 3 / 4) {
+            Entry[] newTable = new Entry[table.length * 2];
+            for (Entry head : table) {
+                for (Entry entry = head, next; entry != null; entry = next) {
+                    next = entry.chain;
+                    int index = index(entry.id, newTable.length);
+                    entry.chain = newTable[index];
+                    newTable[index] = entry;
+                }
+            }
+            table = newTable;
+        }
+        Entry entry = new Entry(id, null);
+        int index = index(id, table.length);
+        entry.chain = table[index];
+        table[index] = entry;
+        size++;
+        return entry;
+    }
+
+    private void set(Entry entry, Player player) {
+        unlink(entry);
+        if (player == null) {
+            entry.ref = null;
+            entry.strong = null;
+            return;
+        }
+        playerToId.put(player, entry.id);
+        switch (retention) {
+            case RETAIN_PINNED:
+                entry.ref = new WeakReference<Player>(player);
+                entry.strong = player;
+                break;
+            case RETAIN_LRU:
+                entry.ref = new WeakReference<Player>(player);
+                touch(entry, player);
+                break;
+            case RETAIN_SOFT:
+                entry.ref = new SoftReference<Player>(player);
+                break;
+        }
+    }
+
+    private void touch(Entry entry, Player player) {
+        if (retention != RETAIN_LRU || player == null)
+            return;
+        unlink(entry);
+        entry.strong = player;
+        entry.next = lru.next;
+        entry.prev = lru;
+        lru.next.prev = entry;
+        lru.next = entry;
+        retained++;
+        while (retained > maxRetained)
+            unlink(lru.prev);
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.next == null)
+            return;
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.next = entry.prev = null;
+        entry.strong = null;
+        retained--;
+    }
+
+    private static final class Entry {
+        final long id;
+        // Null for a brain without AI state.
+        Reference<Player> ref;
+        Player strong;
+        Entry chain;
+        Entry prev;
+        Entry next;
+
+        Entry(long id, Reference<Player> ref) {
+            this.id = id;
+            this.ref = ref;
+        }
+
+        Player get() {
+            return strong != null ? strong : ref == null ? null : ref.get();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Player;
+
+/**
+ * Maps brains to their row IDs and back. Implemented by {@link TicTacToeApp}; kept free of Android types so
+ * serialization code can run on a plain JVM.
+ */
+public interface PlayerRegistry {
+    Player getPlayer(long id);
+
+    long getPlayerID(Player player);
+}
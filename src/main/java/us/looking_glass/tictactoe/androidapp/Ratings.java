@@ -0,0 +1,179 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import us.looking_glass.tictactoe.Game;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Elo ratings of the brains, kept in the rating and games columns of the brains table. Each finished game moves both
+ * brains' ratings by K times the difference between the result and the expected score, K being 40 for a brain's
+ * first 30 games and 20 after. An update reads each brain's rating once, by primary key, and keeps it in memory
+ * from then on, so a game costs O(1) no matter how many brains there are; the changed rows are written once per
+ * update. The leaderboard is read through the rating index. Only AI brains, the rows with a state, are rated: games
+ * with the human player, or any other brain without one, don't count, and the leaderboard leaves such rows out.
+ * <p/>
+ * {@link #update} must run inside a transaction, and {@link #forget()} must be called if that transaction is rolled
+ * back, so the cached ratings don't stay ahead of the table.
+ */
+class Ratings {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:Ratings";
+    final static double INITIAL = 1500;
+    private final static String[] RATING_GAMES_COLS = new String[] { AppDB.KEY_RATING, AppDB.KEY_GAMES,
+            AppDB.KEY_STATE + " IS NOT NULL" };
+    private final static Metrics.Histogram updateTime = Metrics.histogram("db.updateRatings", "ns");
+    private final static Metrics.Counter ratedGames = Metrics.counter("ratings.games");
+
+    private final SQLiteDatabase db;
+    // Rating and game count of every brain read so far, null for the ones that aren't rated.
+    private final Map<Long, double[]> ratings = new HashMap<Long, double[]>();
+    private SQLiteStatement updateRating;
+
+    Ratings(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    /**
+     * Rates a batch of finished games, in order. Games of a brain against itself, or with a brain that has no state,
+     * don't count.
+     *
+     * @param games player 1's id, player 2's id and the result for each game, followed by anything else
+     */
+    synchronized void update(List<long[]> games) {
+        long start = System.nanoTime();
+        Map<Long, double[]> changed = new LinkedHashMap<Long, double[]>();
+        int rated = 0;
+        for (long[] game : games) {
+            if (game[0] == game[1])
+                continue;
+            double[] first = rating(game[0]);
+            double[] second = rating(game[1]);
+            if (first == null || second == null)
+                continue;
+            double score = game[2] == Game.P1_WIN ? 1 : game[2] == Game.P2_WIN ? 0 : 0.5;
+            double expected = expected(first[0], second[0]);
+            first[0] += k(first[1]) * (score - expected);
+            second[0] += k(second[1]) * (expected - score);
+            first[1]++;
+            second[1]++;
+            changed.put(game[0], first);
+            changed.put(game[1], second);
+            rated++;
+        }
+        if (changed.isEmpty())
+            return;
+        if (updateRating == null)
+            updateRating = db.compileStatement("UPDATE " + AppDB.BRAINS_TABLE_NAME + " SET " + AppDB.KEY_RATING + "=?, "
+                    + AppDB.KEY_GAMES + "=? WHERE " + AppDB.KEY_ID + "=?;");
+        try {
+            for (Map.Entry<Long, double[]> entry : changed.entrySet()) {
+                updateRating.bindDouble(1, entry.getValue()[0]);
+                updateRating.bindLong(2, (long) entry.getValue()[1]);
+                updateRating.bindLong(3, entry.getKey());
+                updateRating.execute();
+            }
+        } catch (RuntimeException e) {
+            ratings.clear();
+            throw e;
+        }
+        ratedGames.add(rated);
+        updateTime.recordSince(start);
+        if (debug) Logd("rated %d games, %d brains changed", rated, changed.size());
+    }
+
+    /**
+     * Drops the cached ratings after the transaction of an update was rolled back.
+     */
+    synchronized void forget() {
+        ratings.clear();
+    }
+
+    /**
+     * @return up to {@code limit} AI brains with their ratings and game counts, best first
+     */
+    List<Entry> leaderboard(int limit) {
+        List<Entry> result = new ArrayList<Entry>();
+        Cursor cursor = db.query(AppDB.BRAINS_TABLE_NAME, AppDB.LEADERBOARD_COLS, AppDB.KEY_STATE + " IS NOT NULL",
+                null, null, null, AppDB.KEY_RATING + " DESC", Integer.toString(limit));
+        try {
+            while (cursor.moveToNext())
+                result.add(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getDouble(2), cursor.getLong(3)));
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return the expected score of a brain against an opponent, between 0 and 1
+     */
+    static double expected(double rating, double opponent) {
+        return 1 / (1 + Math.pow(10, (opponent - rating) / 400));
+    }
+
+    private static double k(double games) {
+        return games < 30 ? 40 : 20;
+    }
+
+    /**
+     * @return the rating and game count of a brain, or null if it has no state or no row
+     */
+    private double[] rating(long id) {
+        if (ratings.containsKey(id))
+            return ratings.get(id);
+        double[] result = null;
+        Cursor cursor = db.query(AppDB.BRAINS_TABLE_NAME, RATING_GAMES_COLS, AppDB.KEY_ID + "=" + id, null, null, null, null);
+        try {
+            if (cursor.moveToFirst() && cursor.getInt(2) != 0)
+                result = new double[] { cursor.getDouble(0), cursor.getLong(1) };
+        } finally {
+            cursor.close();
+        }
+        ratings.put(id, result);
+        return result;
+    }
+
+    static class Entry {
+        final long id;
+        final String name;
+        final double rating;
+        final long games;
+
+        Entry(long id, String name, double rating, long games) {
+            this.id = id;
+            this.name = name;
+            this.rating = rating;
+            this.games = games;
+        }
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+}
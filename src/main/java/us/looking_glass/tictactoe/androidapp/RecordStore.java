@@ -0,0 +1,89 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent records of the app: brain states by brain id, appstate blobs by key and matchup snapshots by the pair
+ * of brain ids. Reads may happen on any thread; writes must come from a single writer thread, the app's database
+ * writer for the app's store.
+ */
+public interface RecordStore {
+    /**
+     * @return the current state of a brain, or null if it doesn't exist or has no AI state
+     */
+    byte[] readBrain(long id);
+
+    /**
+     * @return the value stored under an appstate key, or null if there is none
+     */
+    byte[] readState(String key);
+
+    /**
+     * @return the stored state of a matchup, or null if there is none
+     */
+    GameSnapshot readGame(long p1id, long p2id);
+
+    /**
+     * Writes a batch of records. Brains and games in a batch are committed together; see the implementation for
+     * how appstate values are.
+     */
+    void write(Batch batch) throws IOException;
+
+    /**
+     * Makes everything written so far durable.
+     */
+    void sync() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * Records to write together. Later records for the same key replace earlier ones.
+     */
+    final class Batch {
+        final Map<Long, byte[]> brains = new LinkedHashMap<Long, byte[]>();
+        final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+        final List<GameSnapshot> games = new ArrayList<GameSnapshot>();
+
+        public Batch brain(long id, byte[] state) {
+            brains.put(id, state);
+            return this;
+        }
+
+        /**
+         * @param value the new value, or null to remove the key
+         */
+        public Batch state(String key, byte[] value) {
+            states.put(key, value);
+            return this;
+        }
+
+        public Batch game(GameSnapshot snapshot) {
+            games.add(snapshot);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return brains.isEmpty() && states.isEmpty() && games.isEmpty();
+        }
+    }
+}
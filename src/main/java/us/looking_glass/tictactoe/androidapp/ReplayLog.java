@@ -0,0 +1,261 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Board;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary log of played games that can be re-executed through the real {@link Game} and {@link Player} code. The log
+ * is a sequence of records:
+ * <ul>
+ * <li>a header, 'T' 'R' and the format version, at the start and wherever a writer was reopened for appending;</li>
+ * <li>a brain record, {@link #BRAIN}, with the id, length and serialized state of a brain as it was before the
+ * first logged game it played in, written again before its next logged game if it played a game that wasn't
+ * logged;</li>
+ * <li>a game record, {@link #GAME}, with both brain ids, the game's seed, the moves packed as by {@link PackedMoves}
+ * and the result. The seed is what {@link Player#prng} was set to at the start of the game.</li>
+ * </ul>
+ * Numbers are big endian. Replaying starts each brain from its recorded state and each game from its recorded seed,
+ * so deterministic brains make the same moves; a human's moves come from the log.
+ * <p/>
+ * {@link Player#prng} is shared by every thread, so a game is only replayable if nothing else draws from it while
+ * the game is played. Work that does, such as a match, a training run or pondering, holds a {@link PrngUse} from
+ * {@link #usePrng} while it runs, and a session logs a game only if {@link #prngQuietSince} holds for the token it
+ * took from {@link #prngQuiet} at the game's start.
+ */
+public final class ReplayLog {
+    private static final byte MAGIC = 'T';
+    private static final byte LOG_TAG = 'R';
+    private static final byte VERSION = 1;
+    static final byte BRAIN = 1;
+    static final byte GAME = 2;
+    // Open PrngUses, and how many have ever been opened.
+    private static final AtomicInteger prngUsers = new AtomicInteger();
+    private static final AtomicLong prngUses = new AtomicLong();
+
+    private ReplayLog() {
+    }
+
+    /**
+     * Registers work that draws from {@link Player#prng} outside the logged games, until the registration is closed.
+     * Close it in a {@code finally} block.
+     */
+    public static PrngUse usePrng() {
+        return new PrngUse();
+    }
+
+    /**
+     * An open registration from {@link #usePrng}. Closing it more than once has no effect.
+     */
+    public static final class PrngUse implements Closeable {
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private PrngUse() {
+            // Counted as open before it is counted as opened, so prngQuiet() can't miss it.
+            prngUsers.incrementAndGet();
+            prngUses.incrementAndGet();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true))
+                prngUsers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return a token for {@link #prngQuietSince}, or -1 if a {@link PrngUse} is open
+     */
+    public static long prngQuiet() {
+        long uses = prngUses.get();
+        return prngUsers.get() == 0 ? uses : -1;
+    }
+
+    /**
+     * @return whether no {@link PrngUse} has been open since {@code token} was taken
+     */
+    public static boolean prngQuietSince(long token) {
+        return token >= 0 && prngUsers.get() == 0 && prngUses.get() == token;
+    }
+
+    /**
+     * @return the seed array for {@link Player#prng} that a game's logged seed stands for
+     */
+    public static int[] seedArray(long seed) {
+        SplitRandom random = new SplitRandom(seed);
+        int[] result = new int[32];
+        for (int i = 0; i < result.length; i++)
+            result[i] = random.nextInt();
+        return result;
+    }
+
+    public static class Writer implements Closeable, Flushable {
+        private final DataOutputStream out;
+        private final Serializer serializer;
+        // The instance last logged for each brain.
+        private final Map<Long, Player> brains = new HashMap<Long, Player>();
+
+        public Writer(OutputStream out, Serializer serializer) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.serializer = serializer;
+            this.out.writeByte(MAGIC);
+            this.out.writeByte(LOG_TAG);
+            this.out.writeByte(VERSION);
+        }
+
+        /**
+         * Records the state of a brain unless this writer already has for the instance. Call before its first game is
+         * played; the human, a null player, isn't recorded. An instance that replaced the brain, such as a trained
+         * one, is recorded again.
+         */
+        public void brain(long id, Player player) throws IOException {
+            if (player == null || brains.get(id) == player)
+                return;
+            byte[] state;
+            synchronized (serializer) {
+                state = serializer.toBytes(player);
+            }
+            out.writeByte(BRAIN);
+            out.writeLong(id);
+            out.writeInt(state.length);
+            out.write(state);
+            brains.put(id, player);
+        }
+
+        /**
+         * Forgets that a brain was recorded, because it played a game that wasn't logged; its state is recorded again
+         * before its next logged game.
+         */
+        public void forget(long id) {
+            brains.remove(id);
+        }
+
+        public void game(long p1id, long p2id, long seed, long moves, int result) throws IOException {
+            out.writeByte(GAME);
+            out.writeLong(p1id);
+            out.writeLong(p2id);
+            out.writeLong(seed);
+            out.writeLong(moves);
+            out.writeByte(result);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    public static class Result {
+        public long games;
+        public long moves;
+        public long brainMoves;
+        // Games where a brain made a different move than logged, or the result differed; the rest of such a game
+        // is not replayed.
+        public long diverged;
+        public long nanos;
+
+        @Override
+        public String toString() {
+            return String.format("%d games, %d moves (%d by brains), %d diverged, %.1f games/s", games, moves,
+                    brainMoves, diverged, nanos > 0 ? games * 1e9 / nanos : 0);
+        }
+    }
+
+    /**
+     * Replays a log. Brains are deserialized from the log and learn from the replayed games as they did originally;
+     * players that weren't logged, such as the human, play the logged moves. Sets {@link Player#prng}.
+     */
+    public static Result replay(InputStream in, Serializer serializer) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        Map<Long, Player> brains = new HashMap<Long, Player>();
+        Result result = new Result();
+        long start = System.nanoTime();
+        while (true) {
+            int tag = data.read();
+            if (tag < 0)
+                break;
+            switch (tag) {
+                case MAGIC:
+                    if (data.readByte() != LOG_TAG)
+                        throw new IOException("Not a replay log");
+                    byte version = data.readByte();
+                    if (version != VERSION)
+                        throw new IOException(String.format("Unsupported replay log version %d", version));
+                    break;
+                case BRAIN:
+                    long id = data.readLong();
+                    byte[] state = new byte[data.readInt()];
+                    data.readFully(state);
+                    synchronized (serializer) {
+                        brains.put(id, (Player) serializer.fromBytes(state));
+                    }
+                    break;
+                case GAME:
+                    long p1id = data.readLong();
+                    long p2id = data.readLong();
+                    long seed = data.readLong();
+                    long moves = data.readLong();
+                    byte status = data.readByte();
+                    Player p1 = brains.get(p1id);
+                    Player p2 = brains.get(p2id);
+                    Player.prng.setSeed(seedArray(seed));
+                    if (!replayGame(new Game(p1, p2), moves, status, result))
+                        result.diverged++;
+                    result.games++;
+                    break;
+                default:
+                    throw new IOException(String.format("Bad replay log record %d", tag));
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static boolean replayGame(Game game, long moves, byte status, Result result) {
+        for (int i = 0; i < 9 && game.status() == Game.PLAYING; i++) {
+            int cell = (int) (moves >>> (i * 4) & 0xf) - 1;
+            if (cell < 0)
+                return false;
+            result.moves++;
+            if (game.getPlayer() == null) {
+                game.play(cell / 3, cell % 3, game.getCurrentPlayer());
+                continue;
+            }
+            int before = game.board();
+            game.run(1);
+            result.brainMoves++;
+            if (Board.get(before, cell / 3, cell % 3) != 0 || Board.get(game.board(), cell / 3, cell % 3) == 0)
+                return false;
+        }
+        return game.status() == status;
+    }
+}
@@ -0,0 +1,566 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps many {@link GameSession}s live at once, one per matchup. Each matchup has its own pair of serial queues, for
+ * the session's owner and AI work, and all queues share one fixed pool of {@code threads} workers, so matchups run
+ * in parallel while each session still sees one thread at a time. A matchup that has had no command and no AI move
+ * for {@code idleMillis} ms is saved and its session dropped; the next command restores it from storage.
+ * <p/>
+ * Matchups may share brains, and a brain isn't safe for concurrent use, so every task of a matchup holds the locks
+ * of both its brains, taken in id order. The storage is shared as well: its calls are made one at a time on
+ * {@code storageExecutor}, which may be the thread a single-threaded storage belongs to, and
+ * {@link GameSession.Storage#holdBrains} is passed on only while some session holds brains.
+ * <p/>
+ * The storage serializes brains under their locks, so a task holding brain locks must never wait for it: every
+ * storage call a session makes is queued without waiting, and the one call that returns data, loading a matchup, is
+ * made before the restore takes the locks. Sessions run here never switch players, the other path that loads.
+ * <p/>
+ * A session sees the brain instances its tasks lock, fixed when it is restored; a brain the registry replaces in the
+ * meantime, as a finished training run does, is picked up when the matchup is next restored.
+ * <p/>
+ * AI moves here draw from {@link Player#prng} outside any logged game, so every task on an AI queue registers with
+ * {@link ReplayLog#usePrng} while it runs.
+ * <p/>
+ * Once {@link #shutdown} has drained the queues, tasks still submitted to them, by late commands, timers or the idle
+ * sweep, are dropped.
+ */
+public class SessionManager {
+    private final static Metrics.Counter evictions = Metrics.counter("session.evictions");
+    private final static Metrics.Counter restores = Metrics.counter("session.restores");
+    private final static Metrics.Histogram restoreTime = Metrics.histogram("session.restore", "ns");
+    // From submitting a task to a matchup's queue until a worker runs it.
+    private final static Metrics.Histogram queueDelay = Metrics.histogram("session.queueDelay", "ns");
+    private final static Metrics.Counter droppedTasks = Metrics.counter("session.droppedTasks");
+
+    private final PlayerRegistry registry;
+    private final GameCodec codec;
+    private final Serializer serializer;
+    private final SharedStorage storage;
+    private final long idleMillis;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService sweeper;
+    private final Map<String, Matchup> matchups = new LinkedHashMap<String, Matchup>();
+    private volatile boolean shutdown = false;
+
+    public SessionManager(PlayerRegistry registry, GameCodec codec, Serializer serializer, GameSession.Storage storage,
+                          Executor storageExecutor, int threads, long idleMillis) {
+        if (threads < 1 || idleMillis < 1)
+            throw new IllegalArgumentException(String.format("Invalid session manager configuration: %d threads, idle time %dms", threads, idleMillis));
+        this.registry = registry;
+        this.codec = codec;
+        this.serializer = serializer;
+        this.storage = new SharedStorage(storage, storageExecutor);
+        this.idleMillis = idleMillis;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "TicTacToeSession-" + count.incrementAndGet());
+            }
+        });
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TicTacToeSessionSweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, idleMillis, Math.max(1, idleMillis / 2), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a matchup, or returns it if it's already open; it then keeps the sink it was first opened with. The
+     * session is restored on the matchup's queue, so this doesn't wait for storage. After {@link #shutdown}, the
+     * matchup returned ignores its commands.
+     */
+    public Matchup open(long p1id, long p2id, GameSession.Sink sink) {
+        String key = p1id + ":" + p2id;
+        Matchup matchup;
+        synchronized (matchups) {
+            matchup = matchups.get(key);
+            if (matchup != null || shutdown)
+                return matchup != null ? matchup : new Matchup(key, p1id, p2id, sink);
+            matchup = new Matchup(key, p1id, p2id, sink);
+            matchups.put(key, matchup);
+        }
+        matchup.command(null);
+        return matchup;
+    }
+
+    public List<Matchup> matchups() {
+        synchronized (matchups) {
+            return new ArrayList<Matchup>(matchups.values());
+        }
+    }
+
+    /**
+     * @return the number of matchups with a live session
+     */
+    public int liveSessions() {
+        int result = 0;
+        for (Matchup matchup : matchups())
+            if (matchup.session != null)
+                result++;
+        return result;
+    }
+
+    /**
+     * Saves and drops the sessions of matchups idle for longer than the idle time. Runs periodically by itself.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        for (final Matchup matchup : matchups())
+            if (matchup.session != null && now - matchup.lastActive > idleMillis * 1000000)
+                matchup.owner.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Still idle now that it's the matchup's turn, and not waiting for an AI move?
+                        if (matchup.session == null || matchup.session.isThinking()
+                                || System.nanoTime() - matchup.lastActive <= idleMillis * 1000000)
+                            return;
+                        matchup.session.save();
+                        matchup.session = null;
+                        // The cache may hand out other instances of the brains by the time the matchup is restored.
+                        matchup.locks = new Player[0];
+                        evictions.increment();
+                    }
+                });
+    }
+
+    /**
+     * Saves every live session and stops the workers, waiting up to {@code millis} ms for the queued work, AI moves
+     * included, to finish. Work still queued after that is dropped.
+     *
+     * @return whether all queued work finished in time
+     */
+    public boolean shutdown(long millis) throws InterruptedException {
+        sweeper.shutdownNow();
+        List<Matchup> open = matchups();
+        for (Matchup matchup : open)
+            matchup.close();
+        // Closing queues the saves; give queued AI moves a chance to finish and the saves to run after them.
+        long deadline = System.nanoTime() + millis * 1000000;
+        boolean drained = true;
+        for (Matchup matchup : open)
+            drained &= matchup.drain(deadline);
+        shutdown = true;
+        pool.shutdown();
+        return pool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && drained;
+    }
+
+    /**
+     * One live matchup. Commands go to the matchup's queue and return right away; their results reach the sink.
+     */
+    public final class Matchup {
+        private final String key;
+        private final long p1id;
+        private final long p2id;
+        private final GameSession.Sink sink;
+        final SerialQueue owner = new SerialQueue(false);
+        private final SerialQueue ai = new SerialQueue(true);
+        // Only touched on the owner queue, except for the checks of evictIdle().
+        private volatile GameSession session = null;
+        private volatile long lastActive = System.nanoTime();
+        // The brains' locks, in id order; set with the session, read by tasks of both queues.
+        private volatile Player[] locks = new Player[0];
+        // The brains of players 1 and 2 as the session sees them, set with the locks.
+        private volatile Player[] seats = new Player[2];
+        private final PlayerRegistry seatRegistry = new PlayerRegistry() {
+            @Override
+            public Player getPlayer(long id) {
+                Player[] current = seats;
+                return id == p1id ? current[0] : id == p2id ? current[1] : registry.getPlayer(id);
+            }
+
+            @Override
+            public long getPlayerID(Player player) {
+                return registry.getPlayerID(player);
+            }
+        };
+        private boolean closed = false;
+
+        Matchup(String key, long p1id, long p2id, GameSession.Sink sink) {
+            this.key = key;
+            this.p1id = p1id;
+            this.p2id = p2id;
+            this.sink = sink;
+        }
+
+        public long p1id() {
+            return p1id;
+        }
+
+        public long p2id() {
+            return p2id;
+        }
+
+        /**
+         * @return the state of the matchup as last queued for saving, or null if it isn't live or hasn't been saved;
+         * may be called on any thread
+         */
+        public GameSnapshot snapshot() {
+            GameSession current = session;
+            return current == null ? null : current.snapshot();
+        }
+
+        public void playMove(final int x, final int y) {
+            command(new Session() {
+                @Override
+                public void run(GameSession session) {
+                    session.playMove(x, y);
+                }
+            });
+        }
+
+        public void tap() {
+            command(new Session() {
+                @Override
+                public void run(GameSession session) {
+                    session.tap();
+                }
+            });
+        }
+
+        public void save() {
+            command(new Session() {
+                @Override
+                public void run(GameSession session) {
+                    session.save();
+                }
+            });
+        }
+
+        /**
+         * Runs a task on the matchup's queue once no AI move is in progress.
+         */
+        public void whenIdle(final Runnable task) {
+            command(new Session() {
+                @Override
+                public void run(GameSession session) {
+                    session.whenIdle(task);
+                }
+            });
+        }
+
+        /**
+         * Saves the matchup and forgets it; commands sent afterwards are ignored.
+         */
+        public void close() {
+            synchronized (matchups) {
+                if (matchups.get(key) == this)
+                    matchups.remove(key);
+            }
+            owner.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closed = true;
+                    if (session != null)
+                        session.save();
+                    session = null;
+                    locks = new Player[0];
+                }
+            });
+        }
+
+        /**
+         * Waits until both queues are idle at once: AI tasks queue owner tasks and the other way round.
+         *
+         * @return whether they were before the deadline, a value of {@link System#nanoTime()}
+         */
+        boolean drain(long deadline) throws InterruptedException {
+            do {
+                if (!owner.awaitIdle(deadline) || !ai.awaitIdle(deadline))
+                    return false;
+            } while (!owner.isIdle());
+            return true;
+        }
+
+        void command(final Session command) {
+            lastActive = System.nanoTime();
+            owner.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (closed)
+                        return;
+                    if (session != null) {
+                        if (command != null)
+                            command.run(session);
+                    } else {
+                        // This task was queued without locks, so it may wait for storage; then take the new brains'
+                        // for the restore and the command.
+                        final long start = System.nanoTime();
+                        final GameSnapshot stored = storage.load(p1id, p2id);
+                        final GameSession restored = restore();
+                        runLocked(locks, 0, new Runnable() {
+                            @Override
+                            public void run() {
+                                restored.start(p1id, p2id, stored);
+                                restoreTime.recordSince(start);
+                                if (command != null)
+                                    command.run(restored);
+                            }
+                        });
+                    }
+                    lastActive = System.nanoTime();
+                }
+            });
+        }
+
+        private GameSession restore() {
+            Player p1 = registry.getPlayer(p1id);
+            Player p2 = registry.getPlayer(p2id);
+            List<Player> brains = new ArrayList<Player>(2);
+            if (p1 != null)
+                brains.add(p1);
+            if (p2 != null && p2 != p1)
+                brains.add(p2);
+            if (brains.size() == 2 && p2id < p1id)
+                brains.add(brains.remove(0));
+            locks = brains.toArray(new Player[brains.size()]);
+            seats = new Player[] { p1, p2 };
+            session = new GameSession(seatRegistry, codec, serializer, storage, sink, owner, ai);
+            restores.increment();
+            return session;
+        }
+
+        /**
+         * A queue that runs its tasks one at a time, in order, on the pool, each holding the matchup's brain locks.
+         * Tasks are dropped once the manager is shut down.
+         */
+        final class SerialQueue implements Executor {
+            private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+            private final boolean usesPrng;
+            private boolean running = false;
+
+            /**
+             * @param usesPrng whether each task registers with {@link ReplayLog#usePrng} while it runs
+             */
+            SerialQueue(boolean usesPrng) {
+                this.usesPrng = usesPrng;
+            }
+
+            @Override
+            public void execute(final Runnable command) {
+                final long queued = System.nanoTime();
+                synchronized (this) {
+                    if (shutdown) {
+                        droppedTasks.increment();
+                        return;
+                    }
+                    tasks.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            queueDelay.recordSince(queued);
+                            ReplayLog.PrngUse prng = usesPrng ? ReplayLog.usePrng() : null;
+                            try {
+                                runLocked(locks, 0, command);
+                            } finally {
+                                if (prng != null)
+                                    prng.close();
+                                next();
+                            }
+                        }
+                    });
+                    if (!running)
+                        next();
+                }
+            }
+
+            private synchronized void next() {
+                Runnable task = tasks.poll();
+                running = false;
+                if (task != null && !shutdown) {
+                    try {
+                        pool.execute(task);
+                        running = true;
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        // The pool was shut down after the check.
+                    }
+                }
+                if (task != null) {
+                    droppedTasks.add(1 + tasks.size());
+                    tasks.clear();
+                }
+                notifyAll();
+            }
+
+            synchronized boolean isIdle() {
+                return !running && tasks.isEmpty();
+            }
+
+            /**
+             * @return whether the queue became idle before the deadline, a value of {@link System#nanoTime()}
+             */
+            synchronized boolean awaitIdle(long deadline) throws InterruptedException {
+                while (!isIdle()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                return true;
+            }
+        }
+    }
+
+    private interface Session {
+        void run(GameSession session);
+    }
+
+    private static void runLocked(Player[] locks, int from, Runnable task) {
+        if (from == locks.length) {
+            task.run();
+            return;
+        }
+        synchronized (locks[from]) {
+            runLocked(locks, from + 1, task);
+        }
+    }
+
+    /**
+     * The storage as seen by all sessions: calls are made one at a time on the storage executor, and brain holds are
+     * counted across sessions.
+     */
+    private static class SharedStorage implements GameSession.Storage {
+        private final GameSession.Storage storage;
+        private final Executor executor;
+        private int holds = 0;
+
+        SharedStorage(GameSession.Storage storage, Executor executor) {
+            this.storage = storage;
+            this.executor = executor;
+        }
+
+        /**
+         * Waits for the storage, so it must not be called while holding brain locks.
+         */
+        @Override
+        public GameSnapshot load(final long p1id, final long p2id) {
+            FutureTask<GameSnapshot> future = new FutureTask<GameSnapshot>(new Callable<GameSnapshot>() {
+                @Override
+                public GameSnapshot call() {
+                    return storage.load(p1id, p2id);
+                }
+            });
+            run(future);
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for storage", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Error in storage", e.getCause());
+            }
+        }
+
+        /**
+         * Queues the save without waiting; the future completes once the storage has been handed the snapshot.
+         */
+        @Override
+        public Future<?> save(final GameSnapshot snapshot, final boolean selected) {
+            FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    storage.save(snapshot, selected);
+                }
+            }, null);
+            run(future);
+            return future;
+        }
+
+        @Override
+        public void brainChanged(final Player player) {
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    storage.brainChanged(player);
+                }
+            });
+        }
+
+        @Override
+        public void gameFinished(final long p1id, final long p2id, final int result, final long moves) {
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    storage.gameFinished(p1id, p2id, result, moves);
+                }
+            });
+        }
+
+        @Override
+        public void holdBrains(boolean held) {
+            final boolean changed;
+            synchronized (this) {
+                holds += held ? 1 : -1;
+                changed = held ? holds == 1 : holds == 0;
+            }
+            if (changed)
+                run(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (SharedStorage.this) {
+                            // Only the latest transition counts; a hold and release may have raced past this one.
+                            storage.holdBrains(holds > 0);
+                        }
+                    }
+                });
+        }
+
+        @Override
+        public void flush() {
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    storage.flush();
+                }
+            });
+        }
+
+        private void run(final Runnable task) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (storage) {
+                        task.run();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+/**
+ * Splittable pseudo-random generator (SplitMix64). An instance is not thread safe and is meant to be owned by one
+ * worker, game or demo; {@link #split()} and {@link #stream(long)} derive independent generators, so parallel work
+ * never shares one. Everything is derived deterministically from the seed, so a run seeded the same way replays the
+ * same numbers, however its work is spread over threads, as long as streams are handed out in a fixed order or by
+ * index.
+ * <p/>
+ * The app's own random choices, such as the openings of matches and the seeds of games, all come from these
+ * generators. The library's players draw from its static {@code Player.prng} inside their search, which the app
+ * can't route elsewhere: every thread that plays a brain shares that one generator, so their choices are only
+ * reproducible while a single thread plays.
+ */
+final class SplitRandom {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    // Streams handed out by TicTacToeApp.random().
+    static final long STREAM_DEMO = 1;
+    static final long STREAM_MATCH = 2;
+    static final long STREAM_GAME = 4;
+
+    private long seed;
+    private final long gamma;
+
+    SplitRandom(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private SplitRandom(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    /**
+     * Folds a seed array, such as the saved rngSeed, into one generator.
+     */
+    static SplitRandom fromSeed(int[] seed) {
+        long folded = 0;
+        for (int word : seed)
+            folded = mix64(folded + GOLDEN_GAMMA + (word & 0xffffffffL));
+        return new SplitRandom(folded);
+    }
+
+    long nextLong() {
+        return mix64(seed += gamma);
+    }
+
+    int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    /**
+     * @return a uniformly distributed value from 0 to {@code bound} - 1
+     */
+    int nextInt(int bound) {
+        if (bound <= 0)
+            throw new IllegalArgumentException("bound must be positive");
+        int r = nextInt() >>> 1;
+        int m = bound - 1;
+        if ((bound & m) == 0)
+            return (int) ((long) bound * r >> 31);
+        for (int u = r; u - (r = u % bound) + m < 0; u = nextInt() >>> 1)
+            ;
+        return r;
+    }
+
+    /**
+     * @return a new generator, independent of this one from here on; advances this one
+     */
+    SplitRandom split() {
+        return new SplitRandom(nextLong(), mixGamma(seed += gamma));
+    }
+
+    /**
+     * @return the generator numbered {@code index} derived from this one's current state, without advancing it
+     */
+    SplitRandom stream(long index) {
+        long base = mix64(seed + gamma * (index + 1));
+        return new SplitRandom(mix64(base ^ GOLDEN_GAMMA), mixGamma(base));
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // Odd gammas with enough bit transitions, as in java.util.SplittableRandom.
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        return Long.bitCount(z ^ (z >>> 1)) < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.util.Log;
+import us.looking_glass.tictactoe.Player;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Session storage in the app database: matchups in the app's {@link RecordStore}, written in order on the app's
+ * database writer thread, brains through a {@link BrainPersister} and finished games through a {@link GameHistory}.
+ */
+class SqliteGameStorage implements GameSession.Storage {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:SqliteGameStorage";
+    private final static Metrics.Histogram restoreTime = Metrics.histogram("db.restoreGame", "ns");
+    // From the request of a save until it was committed.
+    private final static Metrics.Histogram saveTime = Metrics.histogram("save.snapshot", "ns");
+
+    private final TicTacToeApp app;
+    private final BrainPersister persister;
+    private final GameHistory history;
+
+    SqliteGameStorage(TicTacToeApp app, BrainPersister persister, GameHistory history) {
+        this.app = app;
+        this.persister = persister;
+        this.history = history;
+    }
+
+    @Override
+    public GameSnapshot load(long p1id, long p2id) {
+        awaitWrites();
+        long start = System.nanoTime();
+        GameSnapshot stored = app.records.readGame(p1id, p2id);
+        restoreTime.recordSince(start);
+        if (debug) Logd("load #%d vs #%d: %s", p1id, p2id, stored == null ? "none" : "found");
+        return stored;
+    }
+
+    private void awaitWrites() {
+        try {
+            app.dbWriter().submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (Exception e) {
+            Log.e(TAG, "Error waiting for pending writes", e);
+        }
+    }
+
+    @Override
+    public Future<?> save(final GameSnapshot snapshot, final boolean selected) {
+        final long requested = System.nanoTime();
+        return app.dbWriter().submit(new Runnable() {
+            @Override
+            public void run() {
+                write(snapshot, selected);
+                saveTime.recordSince(requested);
+                if (debug) Logd("saved #%d vs #%d in %dms", snapshot.p1id, snapshot.p2id, (System.nanoTime() - requested) / 1000000);
+            }
+        });
+    }
+
+    private void write(GameSnapshot snapshot, boolean selected) {
+        RecordStore.Batch batch = new RecordStore.Batch().game(snapshot);
+        if (selected)
+            batch.state("selectedPlayers", app.toBytes(new long[] { snapshot.p1id, snapshot.p2id }));
+        try {
+            app.records.write(batch);
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving game", e);
+        }
+    }
+
+    @Override
+    public void brainChanged(Player player) {
+        persister.markDirty(player);
+    }
+
+    @Override
+    public void gameFinished(long p1id, long p2id, int result, long moves) {
+        history.record(p1id, p2id, result, moves);
+        persister.gameFinished();
+    }
+
+    @Override
+    public void holdBrains(boolean held) {
+        persister.hold(held);
+    }
+
+    @Override
+    public void flush() {
+        persister.flush();
+        history.flush();
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.Map;
+
+/**
+ * The app database as a {@link RecordStore}: brains through the {@link BrainJournal}, appstate through the
+ * {@link AppState} cache and matchups in the game table. Brains and games of a batch share a transaction; appstate
+ * values are written after it commits, in a batch of their own, since the appstate store must not be written from
+ * inside another transaction. Commits are durable, so {@link #sync()} has nothing to do.
+ */
+class SqliteRecordStore implements RecordStore {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:SqliteRecordStore";
+    private final static Metrics.Histogram writeTime = Metrics.histogram("store.sqlite.write", "ns");
+    private final static Metrics.Histogram readGameTime = Metrics.histogram("store.sqlite.readGame", "ns");
+
+    private final SQLiteDatabase db;
+    private final AppState appState;
+    private final BrainJournal journal;
+
+    SqliteRecordStore(SQLiteDatabase db, AppState appState, BrainJournal journal) {
+        this.db = db;
+        this.appState = appState;
+        this.journal = journal;
+    }
+
+    @Override
+    public byte[] readBrain(long id) {
+        return journal.read(id);
+    }
+
+    @Override
+    public byte[] readState(String key) {
+        return appState.getBlob(key);
+    }
+
+    @Override
+    public GameSnapshot readGame(long p1id, long p2id) {
+        long start = System.nanoTime();
+        String whereString = AppDB.KEY_P1ID + "=" + Long.toString(p1id) + " AND " + AppDB.KEY_P2ID + "=" + Long.toString(p2id);
+        Cursor result = db.query(true, AppDB.GAME_TABLE_NAME, AppDB.TALLY_GAME_RESULT_COLS, whereString, null, null, null, null, null);
+        GameSnapshot stored = null;
+        try {
+            if (result.getCount() == 1 && result.moveToFirst())
+                stored = new GameSnapshot(p1id, p2id, result.getBlob(result.getColumnIndexOrThrow(AppDB.KEY_GAME)),
+                        result.getBlob(result.getColumnIndexOrThrow(AppDB.KEY_TALLY)),
+                        (byte) result.getInt(result.getColumnIndexOrThrow(AppDB.KEY_RESULT)));
+        } finally {
+            result.close();
+        }
+        readGameTime.recordSince(start);
+        return stored;
+    }
+
+    @Override
+    public void write(Batch batch) {
+        long start = System.nanoTime();
+        if (!batch.brains.isEmpty() || !batch.games.isEmpty()) {
+            boolean committed = false;
+            db.beginTransaction();
+            try {
+                for (Map.Entry<Long, byte[]> entry : batch.brains.entrySet())
+                    journal.write(entry.getKey(), entry.getValue());
+                for (GameSnapshot snapshot : batch.games) {
+                    ContentValues values = new ContentValues();
+                    values.put(AppDB.KEY_P1ID, snapshot.p1id);
+                    values.put(AppDB.KEY_P2ID, snapshot.p2id);
+                    values.put(AppDB.KEY_GAME, snapshot.game);
+                    values.put(AppDB.KEY_TALLY, snapshot.tally);
+                    values.put(AppDB.KEY_RESULT, snapshot.lastResult);
+                    db.insert(AppDB.GAME_TABLE_NAME, null, values);
+                }
+                db.setTransactionSuccessful();
+                committed = true;
+            } finally {
+                db.endTransaction();
+                // The journal's bases moved ahead of a rolled back transaction; start over from full snapshots.
+                if (!committed)
+                    for (Long id : batch.brains.keySet())
+                        journal.forget(id);
+            }
+        }
+        if (!batch.states.isEmpty()) {
+            appState.beginBatch();
+            try {
+                for (Map.Entry<String, byte[]> entry : batch.states.entrySet())
+                    appState.put(entry.getKey(), entry.getValue());
+            } finally {
+                appState.endBatch();
+            }
+        }
+        writeTime.recordSince(start);
+        if (debug) Logd("wrote %d brains, %d states, %d games", batch.brains.size(), batch.states.size(), batch.games.size());
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+}
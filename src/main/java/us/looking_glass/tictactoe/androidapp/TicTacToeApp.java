@@ -17,36 +17,62 @@
 package us.looking_glass.tictactoe.androidapp;
 
 import android.app.Application;
-import android.content.ContentValues;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
+import us.looking_glass.tictactoe.BeanCounterPlayer;
+import us.looking_glass.tictactoe.LMSRankPlayer;
 import us.looking_glass.tictactoe.Player;
 import us.looking_glass.util.Serializer;
 
-import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-public class TicTacToeApp extends Application {
-    Map<Long, WeakReference<Player>> idToPlayer = new HashMap<Long, WeakReference<Player>>();
-    Map<Player, Long> playerToId = new WeakHashMap<Player, Long>();
+public class TicTacToeApp extends Application implements PlayerRegistry {
+    // Brains in use are always shared; beyond those, keep the few most recently selected ones loaded.
+    final PlayerCache players = new PlayerCache(new PlayerCache.Loader() {
+        @Override
+        public Player load(long id) {
+            return loadPlayer(id);
+        }
+    }, PlayerCache.RETAIN_LRU, 6);
     private static TicTacToeApp app;
     final static String TAG = "TicTacToe:App";
+    // Shared by every thread. A Serializer isn't safe for concurrent use, so each use holds its lock, taken after any
+    // other lock: callers may hold a brain's lock, but nothing else is locked while a serializer's is held.
     Serializer serializer;
     Serializer gameSerializer;
+    GameCodec gameCodec;
     SQLiteDatabase db;
+    AppState appState;
+    BrainJournal journal;
+    RecordStore records;
+    Ratings ratings;
+    private LogRecordStore logRecords;
+    // The saved master seed, parsed once; streams are derived from it without advancing it.
+    private SplitRandom masterRandom;
+    private ExecutorService dbWriter;
+    private ExecutorService aiExecutor;
     final static boolean debug = false;
+    private final static Metrics.Histogram loadPlayerTime = Metrics.histogram("db.loadPlayer", "ns");
+    private final static Metrics.Histogram loadPlayerSize = Metrics.histogram("blob.brain.load", "bytes");
+    private final static Metrics.Histogram playerStateTime = Metrics.histogram("db.getPlayerState", "ns");
 
     private void openDB() {
         AppDB dbOpener = new AppDB(this);
         db = dbOpener.getWritableDatabase();
+        appState = new AppState(db);
+        journal = new BrainJournal(db);
+        records = new SqliteRecordStore(db, appState, journal);
+        ratings = new Ratings(db);
     }
 
     private void configureSerializer() {
         serializer = new Serializer();
-        gameSerializer = new GameSerializer();
+        gameSerializer = new GameSerializer(this);
+        gameCodec = new GameCodec(this, gameSerializer, serializer);
     }
 
     private void readSerialized () {
@@ -59,6 +85,16 @@ public class TicTacToeApp extends Application {
         app = this;
         configureSerializer();
         openDB();
+        // Maps or solves the perfect play table, and checks how the stock brains learn, before the first move that
+        // needs them.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                perfectPlay();
+                BrainReplicas.learnsFromReplay(serializer, new BeanCounterPlayer());
+                BrainReplicas.learnsFromReplay(serializer, new LMSRankPlayer());
+            }
+        }, "TicTacToePerfectPlay").start();
     }
 
     static TicTacToeApp app() {
@@ -69,127 +105,187 @@ public class TicTacToeApp extends Application {
         return app.serializer;
     }
 
-    Player getPlayer(long id) {
-        if (idToPlayer.containsKey(id)) {
-            WeakReference<Player> reference = idToPlayer.get(id);
-            if (reference == null) {
-                if (debug) Logd("getPlayer(%d): retrieved null from cache", id);
-                return null;
-            }
-            Player result = reference.get();
-            if (result != null) {
-                if (debug) Logd("getPlayer(%d): retrieved %s from cache", id, result);
-                return result;
-            }
+    /**
+     * Serializes with {@link #serializer}, holding its lock.
+     */
+    byte[] toBytes(Object value) {
+        synchronized (serializer) {
+            return serializer.toBytes(value);
         }
-        String queryString = String.format("_id=%d", id);
-        Cursor result = db.query(AppDB.BRAINS_TABLE_NAME, AppDB.ID_STATE_COLS, queryString, null, null, null, AppDB.KEY_ID, null);
-        try {
-            if (debug) Logd("getPlayer(%d): %d results", id, result.getCount());
-            if (result.getCount() != 1 || !result.moveToFirst())
-                return null;
-            int colIndex = result.getColumnIndexOrThrow(AppDB.KEY_STATE);
-            byte[] state = result.getBlob(colIndex);
-            Player playerResult = null;
-            if (state != null)
-                playerResult = (Player) serializer().fromBytes(state);
-            if (playerResult == null) {
-                idToPlayer.put(id, null);
-                return null;
-            }
-            if (debug) Logd("getPlayer(%d): retrieved %s from db", id, playerResult);
-            playerToId.put(playerResult, id);
-            idToPlayer.put(id, new WeakReference<Player>(playerResult));
-            return playerResult;
-        } finally {
-            result.close();
+    }
+
+    /**
+     * Deserializes with {@link #serializer}, holding its lock.
+     */
+    Object fromBytes(byte[] data) {
+        synchronized (serializer) {
+            return serializer.fromBytes(data);
         }
     }
 
-    long getPlayerID(Player player) {
-        if (playerToId.containsKey(player))
-            return playerToId.get(player);
-        throw new IllegalStateException(String.format("Player not in ID index: %s", player));
+    /**
+     * @return a fresh generator for one of the {@link SplitRandom} streams, derived from the saved master seed, or
+     * from the clock if no seed has been saved yet
+     */
+    synchronized SplitRandom random(long stream) {
+        if (masterRandom == null) {
+            int[] seed = getObject("rngSeed");
+            if (seed == null)
+                return new SplitRandom(System.nanoTime()).stream(stream);
+            masterRandom = SplitRandom.fromSeed(seed);
+        }
+        return masterRandom.stream(stream);
     }
 
-    private Cursor retrieveValue(String key) {
-        String queryString = AppDB.KEY_NAME + "='" + key + "'";
-        Cursor result = app().db.query(true, AppDB.APPSTATE_TABLE_NAME, AppDB.NAME_VALUE_COLS, queryString, null, null,null, null, "1");
-        if (result.getCount() != 1) {
-            result.close();
-            return null;
+    /**
+     * Saves a new master seed; generators handed out by {@link #random} from now on derive from it.
+     */
+    synchronized void setSeed(int[] seed) {
+        putState("rngSeed", seed);
+        masterRandom = SplitRandom.fromSeed(seed);
+    }
+
+    PerfectPlay perfectPlay() {
+        return PerfectPlay.get(new File(getFilesDir(), "perfect_play.bin"));
+    }
+
+    /**
+     * Single thread for database writes that don't need to finish before the caller continues.
+     */
+    synchronized ExecutorService dbWriter() {
+        if (dbWriter == null)
+            dbWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "TicTacToeDBWriter");
+                }
+            });
+        return dbWriter;
+    }
+
+    /**
+     * Single thread for AI moves of the interactive game, so a slow brain never holds up the game thread.
+     */
+    synchronized ExecutorService aiExecutor() {
+        if (aiExecutor == null)
+            aiExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "TicTacToeAI");
+                }
+            });
+        return aiExecutor;
+    }
+
+    /**
+     * The log-structured store in the files directory, for bulk runs that checkpoint more often than the app
+     * database keeps up with. Written on the database writer thread, like the app's store, and compacted on a thread
+     * of its own.
+     */
+    synchronized LogRecordStore logRecords() throws IOException {
+        if (logRecords == null)
+            logRecords = new LogRecordStore(new File(getFilesDir(), "records.log"), Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TicTacToeCompactor");
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            }));
+        return logRecords;
+    }
+
+    /**
+     * The store for bulk runs, chosen by the {@code "bulkStore"} setting: {@code "log"}, the default, for
+     * {@link #logRecords()}, or {@code "sqlite"} for the app's own. Falls back to the app's own if the log can't be
+     * opened.
+     */
+    RecordStore bulkRecords() {
+        if ("sqlite".equals(getString("bulkStore")))
+            return records;
+        try {
+            return logRecords();
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening record log, using the app database", e);
+            return records;
         }
-        result.moveToFirst();
+    }
+
+    @Override
+    public Player getPlayer(long id) {
+        Player result = players.getPlayer(id);
+        if (debug) Logd("getPlayer(%d): %s, %s", id, result, players);
         return result;
     }
 
-    private ContentValues entryForKey(String key) {
-        ContentValues entry = new ContentValues();
-        entry.put(AppDB.KEY_NAME, key);
-        return entry;
+    private Player loadPlayer(long id) {
+        long start = System.nanoTime();
+        try {
+            byte[] state = records.readBrain(id);
+            if (debug) Logd("loadPlayer(%d): %s", id, state == null ? "no state" : state.length + " bytes");
+            if (state == null)
+                return null;
+            loadPlayerSize.record(state.length);
+            return (Player) fromBytes(state);
+        } finally {
+            loadPlayerTime.recordSince(start);
+        }
     }
 
-    private void putEntry(ContentValues entry) {
-        db.insert(AppDB.APPSTATE_TABLE_NAME, null, entry);
+    /**
+     * Reads the stored state of a brain without deserializing it or touching the player cache.
+     */
+    byte[] getPlayerState(long id) {
+        long start = System.nanoTime();
+        try {
+            return records.readBrain(id);
+        } finally {
+            playerStateTime.recordSince(start);
+        }
     }
+
+    @Override
+    public long getPlayerID(Player player) {
+        return players.getPlayerID(player);
+    }
+
     public int getInt(String key, int def) {
-        Cursor result = retrieveValue(key);
-        if (result == null)
-            return def;
-        try {
-            return result.getInt(result.getColumnIndexOrThrow(AppDB.KEY_VALUE));
-        } finally { result.close(); }
+        return appState.getInt(key, def);
     }
 
     public void putState(String key, int value) {
-        ContentValues entry = entryForKey(key);
-        entry.put(AppDB.KEY_VALUE, value);
-        putEntry(entry);
+        appState.put(key, value);
     }
 
     public String getString(String key) {
-        Cursor result = retrieveValue(key);
-        if (result == null)
-            return null;
-        try {
-            return result.getString(result.getColumnIndexOrThrow(AppDB.KEY_VALUE));
-        } finally { result.close(); }
+        return appState.getString(key);
     }
 
     public void putState(String key, String value) {
-        ContentValues entry = entryForKey(key);
-        entry.put(AppDB.KEY_VALUE, value);
-        putEntry(entry);
+        appState.put(key, value);
     }
 
     public byte[] getBlob(String key) {
-        Cursor result = retrieveValue(key);
-        if (result == null)
-            return null;
-        try {
-            return result.getBlob(result.getColumnIndexOrThrow(AppDB.KEY_VALUE));
-        } finally { result.close(); }
+        return appState.getBlob(key);
     }
 
     public void putState(String key, byte[] value) {
-        ContentValues entry = entryForKey(key);
-        entry.put(AppDB.KEY_VALUE, value);
-        putEntry(entry);
+        appState.put(key, value);
     }
 
     public <T> T getObject(String key) {
-        Cursor result = retrieveValue(key);
-        if (result == null)
+        byte[] value = appState.getBlob(key);
+        if (value == null)
             return null;
-        try {
-            return (T) serializer.fromBytes(result.getBlob(result.getColumnIndexOrThrow(AppDB.KEY_VALUE)));
-        } finally { result.close(); }
+        return (T) fromBytes(value);
     }
 
     public <T> void putState(String key, T value, Serializer serializer) {
-        ContentValues entry = entryForKey(key);
-        entry.put(AppDB.KEY_VALUE, serializer.toBytes(value));
-        putEntry(entry);
+        byte[] data;
+        synchronized (serializer) {
+            data = serializer.toBytes(value);
+        }
+        appState.put(key, data);
     }
 
     public <T> void putState(String key, T value) {
@@ -0,0 +1,438 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import android.util.Log;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.Player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Trains a learning brain by self-play against an opponent, off the interactive game thread. The trainer works on
+ * its own copy of the brain, deserialized from the stored state, and every {@code saveInterval} ms replays the games
+ * played since into the live instance the app's games use, which keeps what it learned from those games in the
+ * meantime, and queues the live brain's state for writing as its record. The replay runs on the owner executor, the
+ * thread that plays the live brain's games, under the brain's lock. The trained copy is checkpointed along with it as
+ * the state record {@code "train.<id>"} of a {@link RecordStore}, on the app's database writer thread. A checkpoint
+ * holds the games played so far, the opponent's id and the copy's state; a run against the same opponent that finds
+ * one, left by a run that didn't get to finish, resumes from it, and the games already played count toward the
+ * limit. When training ends the last games are replayed and the checkpoint is removed.
+ * <p/>
+ * Only a brain that passes {@link BrainReplicas#learnsFromReplay} can be trained, as replaying is how the live brain
+ * learns. A brain isn't safe for concurrent use, so the workers play on {@link BrainReplicas} of the trained copy and
+ * its opponent, and every {@code mergeGames} games replay their games into it. The opponent, a copy as well, learns
+ * during training but is not saved. If the opponent fails {@link BrainReplicas#learnsFromReplay}, one worker plays
+ * on the trained copy itself under its lock instead. The trainee takes player 1 in even games and player 2 in odd
+ * ones.
+ */
+public class Trainer {
+    final static boolean debug = false;
+    private final static String TAG = "TicTacToe:Trainer";
+    private final static Metrics.Counter trainedGames = Metrics.counter("train.games");
+    private final static Metrics.Histogram serializeTime = Metrics.histogram("train.serialize", "ns");
+    private final static Metrics.Histogram writeTime = Metrics.histogram("train.write", "ns");
+    private final static Metrics.Histogram blobSize = Metrics.histogram("train.blob", "bytes");
+    private final static Metrics.Counter resumedGames = Metrics.counter("train.resumedGames");
+
+    public interface Listener {
+        /**
+         * @param results the trainee's wins, losses and draws
+         */
+        void onProgress(long played, long[] results, double gamesPerSecond);
+        void onComplete(long played, long[] results, double gamesPerSecond);
+    }
+
+    private final TicTacToeApp app;
+    private final long brainID;
+    private final long opponentID;
+    private final int threads;
+    private final long saveInterval;
+    private int mergeGames = 64;
+    private final Object pauseLock = new Object();
+    private boolean paused = false;
+    private volatile boolean cancelled = false;
+    private RecordStore checkpoints;
+    private Executor owner;
+    // Games played since the live brain was last merged into: moves as packed by PackedMoves, and 1 if the trainee
+    // moved first.
+    private final List<long[]> unmerged = new ArrayList<long[]>();
+    private final AtomicLongArray results = new AtomicLongArray(3);
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong saveNanos = new AtomicLong();
+
+    public Trainer(TicTacToeApp app, long brainID, long opponentID) {
+        this(app, brainID, opponentID, Runtime.getRuntime().availableProcessors(), 5000);
+    }
+
+    public Trainer(TicTacToeApp app, long brainID, long opponentID, int threads, long saveInterval) {
+        if (threads < 1 || saveInterval < 1)
+            throw new IllegalArgumentException(String.format("Invalid trainer configuration: %d threads, save interval %dms", threads, saveInterval));
+        this.app = app;
+        this.brainID = brainID;
+        this.opponentID = opponentID;
+        this.threads = threads;
+        this.saveInterval = saveInterval;
+    }
+
+    /**
+     * Keeps the checkpoints in another store, such as the one {@link TicTacToeApp#bulkRecords()} selects, instead of
+     * the app's own.
+     */
+    public Trainer setCheckpointStore(RecordStore checkpoints) {
+        this.checkpoints = checkpoints;
+        return this;
+    }
+
+    /**
+     * Replays the trained games into the live brain on {@code owner}, the executor that plays the live brain's games,
+     * instead of on the training thread under the brain's lock.
+     */
+    public Trainer setOwner(Executor owner) {
+        this.owner = owner;
+        return this;
+    }
+
+    /**
+     * Sets how many games each worker plays on its replica between merges into the trained copy.
+     */
+    public Trainer setMergeGames(int mergeGames) {
+        if (mergeGames < 1)
+            throw new IllegalArgumentException("Invalid merge interval: " + mergeGames);
+        this.mergeGames = mergeGames;
+        return this;
+    }
+
+    public void pause() {
+        synchronized (pauseLock) {
+            paused = true;
+        }
+    }
+
+    public void resume() {
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+        resume();
+    }
+
+    /**
+     * @return the number of saves so far
+     */
+    public long saves() {
+        return saves.get();
+    }
+
+    /**
+     * @return the total time spent serializing and writing the brain, in ns
+     */
+    public long saveNanos() {
+        return saveNanos.get();
+    }
+
+    /**
+     * Trains for {@code games} games or {@code millis} ms, whichever comes first, blocking the calling thread until
+     * done or cancelled. 0 means no limit, but not for both. Time spent paused counts against {@code millis}. The
+     * listener, if any, is called on the calling thread after each save.
+     *
+     * @return the trainee's wins, losses and draws
+     */
+    public long[] run(final long games, long millis, Listener listener) throws InterruptedException {
+        if (games <= 0 && millis <= 0)
+            throw new IllegalArgumentException("Training needs a game or time limit");
+        final RecordStore store = checkpoints != null ? checkpoints : app.records;
+        byte[] brainState = app.getPlayerState(brainID);
+        byte[] opponentState = app.getPlayerState(opponentID);
+        if (brainState == null || opponentState == null)
+            throw new IllegalArgumentException(String.format("Both brains need AI state: #%d, #%d", brainID, opponentID));
+        long resumed = 0;
+        ByteBuffer checkpoint = readCheckpoint(store);
+        if (checkpoint != null) {
+            resumed = checkpoint.getLong();
+            brainState = new byte[checkpoint.remaining()];
+            checkpoint.get(brainState);
+            resumedGames.add(resumed);
+            if (debug) Logd("resuming #%d against #%d after %d games", brainID, opponentID, resumed);
+        }
+        final long firstGame = resumed;
+        final Player trainee;
+        final Player opponent;
+        trainee = (Player) app.fromBytes(brainState);
+        opponent = brainID == opponentID ? trainee : (Player) app.fromBytes(opponentState);
+        if (!BrainReplicas.learnsFromReplay(app.serializer, trainee))
+            throw new IllegalArgumentException(String.format("Brain #%d can't learn from replayed games", brainID));
+        final long deadline = millis > 0 ? System.nanoTime() + millis * 1000000 : Long.MAX_VALUE;
+        final AtomicLong started = new AtomicLong(resumed);
+        boolean replicated = BrainReplicas.learnsFromReplay(app.serializer, opponent);
+        final BrainReplicas replicas = replicated ? new BrainReplicas(app.serializer, trainee, opponent, mergeGames) : null;
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                // Registered for as long as the worker draws from Player.prng, which may outlast run().
+                ReplayLog.PrngUse prng = ReplayLog.usePrng();
+                BrainReplicas.Replica replica = null;
+                try {
+                    if (replicas != null)
+                        replica = replicas.replica();
+                    while (awaitResume() && System.nanoTime() < deadline) {
+                        long n = started.getAndIncrement();
+                        if (games > 0 && n >= games)
+                            break;
+                        boolean traineeFirst = (n & 1) == 0;
+                        byte status;
+                        long moves = 0;
+                        if (replica != null) {
+                            Game game = traineeFirst ? new Game(replica.brain(), replica.opponent())
+                                    : new Game(replica.opponent(), replica.brain());
+                            while (game.status() == Game.PLAYING) {
+                                game.run(1);
+                                moves = PackedMoves.append(moves, game.board());
+                            }
+                            status = game.status();
+                            // Queued for the live brain before the trained copy can learn it.
+                            queueMerge(moves, traineeFirst);
+                            replica.played(moves, traineeFirst);
+                        } else {
+                            // The opponent is only used under the trainee's lock as well.
+                            synchronized (trainee) {
+                                Game game = traineeFirst ? new Game(trainee, opponent) : new Game(opponent, trainee);
+                                while (game.status() == Game.PLAYING) {
+                                    game.run(1);
+                                    moves = PackedMoves.append(moves, game.board());
+                                }
+                                status = game.status();
+                                queueMerge(moves, traineeFirst);
+                            }
+                        }
+                        int winner = status == Game.P1_WIN ? 1 : status == Game.P2_WIN ? 2 : 0;
+                        results.incrementAndGet(winner == 0 ? 2 : (winner == 1) == traineeFirst ? 0 : 1);
+                        trainedGames.increment();
+                    }
+                } finally {
+                    if (replica != null)
+                        replica.merge();
+                    prng.close();
+                }
+            }
+        };
+        int workers = replicated ? threads : 1;
+        if (debug) Logd("training #%d against #%d on %d %s", brainID, opponentID, workers, replicated ? "replicas" : "locked worker");
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TicTacToeTrainer-" + count.incrementAndGet());
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        for (int i = 0; i < workers; i++)
+            pool.submit(worker);
+        pool.shutdown();
+        long start = System.nanoTime();
+        try {
+            while (!pool.awaitTermination(saveInterval, TimeUnit.MILLISECONDS)) {
+                if (cancelled)
+                    break;
+                // The live brain is written first, so a checkpoint never holds games the brain hasn't learned.
+                merge(false);
+                save(checkpoint(firstGame + played(), serialize(trainee)), store, true);
+                if (listener != null)
+                    listener.onProgress(played(), results(), rate(start));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        // Workers stop within a game of being interrupted; nothing more is merged while one might still play.
+        while (!pool.awaitTermination(saveInterval, TimeUnit.MILLISECONDS))
+            if (debug) Logd("waiting for the workers training #%d to stop", brainID);
+        Future<?> saved = merge(true);
+        if (store != app.records)
+            save(null, store, true);
+        try {
+            saved.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error saving trained brain", e.getCause());
+        }
+        long played = played();
+        double rate = rate(start);
+        if (debug) Logd("trained #%d against #%d: %d games in %d threads, %.1f games/s, %d saves in %dms", brainID,
+                opponentID, played, workers, rate, saves.get(), saveNanos.get() / 1000000);
+        if (listener != null)
+            listener.onComplete(played, results(), rate);
+        return results();
+    }
+
+    private boolean awaitResume() {
+        synchronized (pauseLock) {
+            while (paused && !cancelled) {
+                try {
+                    pauseLock.wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return !cancelled && !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * @return the checkpoint left by a run against this trainer's opponent, positioned at its game count, or null if
+     * there is none
+     */
+    private ByteBuffer readCheckpoint(RecordStore store) {
+        byte[] data = store.readState(checkpointKey());
+        if (data == null || data.length < 16)
+            return null;
+        ByteBuffer checkpoint = ByteBuffer.wrap(data);
+        if (checkpoint.getLong(8) != opponentID)
+            return null;
+        return checkpoint;
+    }
+
+    private byte[] checkpoint(long played, byte[] state) {
+        return ByteBuffer.allocate(16 + state.length).putLong(played).putLong(opponentID).put(state).array();
+    }
+
+    /**
+     * Queues a trained game for the next merge into the live brain. A game is queued before a checkpoint of the
+     * trained copy can include it, so the live brain's write that precedes the checkpoint has it.
+     */
+    private void queueMerge(long moves, boolean traineeFirst) {
+        synchronized (unmerged) {
+            unmerged.add(new long[] { moves, traineeFirst ? 1 : 0 });
+        }
+    }
+
+    /**
+     * Replays the games played since the last merge into the live brain, on the owner executor if there is one, and
+     * queues its state for writing from there, so the write is ordered with the brain's other saves.
+     *
+     * @param last whether this is the run's final merge, which removes the checkpoint with the brain's write if they
+     *             share a store
+     * @return the brain's write, or null if there was nothing to merge
+     */
+    private Future<?> merge(final boolean last) throws InterruptedException {
+        final List<long[]> games;
+        synchronized (unmerged) {
+            games = new ArrayList<long[]>(unmerged);
+            unmerged.clear();
+        }
+        if (games.isEmpty() && !last)
+            return null;
+        FutureTask<Future<?>> merged = new FutureTask<Future<?>>(new Callable<Future<?>>() {
+            @Override
+            public Future<?> call() {
+                Player live = app.getPlayer(brainID);
+                if (live == null)
+                    throw new IllegalStateException(String.format("Trained brain #%d is gone", brainID));
+                // Only the trainee is merged; the opponent is left to its own games.
+                Player other = brainID == opponentID ? live : null;
+                synchronized (live) {
+                    for (long[] game : games)
+                        BrainReplicas.replay(game[1] != 0 ? new Game(live, other) : new Game(other, live), game[0]);
+                    return save(serialize(live), app.records, false, last);
+                }
+            }
+        });
+        if (owner != null)
+            owner.execute(merged);
+        else
+            merged.run();
+        try {
+            return merged.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error merging trained games", e.getCause());
+        }
+    }
+
+    private byte[] serialize(Player trainee) {
+        long start = System.nanoTime();
+        byte[] state;
+        synchronized (trainee) {
+            state = app.toBytes(trainee);
+        }
+        long serialized = System.nanoTime() - start;
+        serializeTime.record(serialized);
+        saveNanos.addAndGet(serialized);
+        blobSize.record(state.length);
+        return state;
+    }
+
+    private Future<?> save(byte[] state, RecordStore store, boolean checkpoint) {
+        return save(state, store, checkpoint, false);
+    }
+
+    /**
+     * Queues a checkpoint, null to remove it, or the live brain's state for writing. The brain's last write removes
+     * the checkpoint with it if they share the store.
+     */
+    private Future<?> save(final byte[] state, final RecordStore store, final boolean checkpoint, final boolean last) {
+        return app.dbWriter().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                long start = System.nanoTime();
+                RecordStore.Batch batch = checkpoint ? new RecordStore.Batch().state(checkpointKey(), state)
+                        : new RecordStore.Batch().brain(brainID, state);
+                if (!checkpoint && last && (checkpoints == null || checkpoints == app.records))
+                    batch.state(checkpointKey(), null);
+                store.write(batch);
+                long written = System.nanoTime() - start;
+                writeTime.record(written);
+                saves.incrementAndGet();
+                saveNanos.addAndGet(written);
+                return null;
+            }
+        });
+    }
+
+    private String checkpointKey() {
+        return "train." + brainID;
+    }
+
+    private long played() {
+        return results.get(0) + results.get(1) + results.get(2);
+    }
+
+    private long[] results() {
+        return new long[] { results.get(0), results.get(1), results.get(2) };
+    }
+
+    private double rate(long start) {
+        long elapsed = System.nanoTime() - start;
+        return elapsed > 0 ? played() * 1e9 / elapsed : 0;
+    }
+
+    private static void Logd(String text, Object... args) {
+        if (args != null && args.length > 0)
+            text = String.format(text, args);
+        Log.d(TAG, text);
+    }
+}
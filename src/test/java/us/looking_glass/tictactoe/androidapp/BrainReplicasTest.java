@@ -0,0 +1,89 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import org.junit.Test;
+import us.looking_glass.tictactoe.BeanCounterPlayer;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.LMSRankPlayer;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BrainReplicasTest {
+    private static final int GAMES = 200;
+    private final Serializer serializer = new Serializer();
+
+    private Player copy(Player player) {
+        return (Player) serializer.fromBytes(serializer.toBytes(player));
+    }
+
+    private byte[] trainSequentially(Player brain) {
+        for (int i = 0; i < GAMES; i++) {
+            Game game = new Game(brain, brain);
+            while (game.status() == Game.PLAYING)
+                game.run(1);
+        }
+        return serializer.toBytes(brain);
+    }
+
+    private byte[] trainOnReplica(Player brain) {
+        // Merging after every game, the replica never plays with a brain that is behind the master.
+        BrainReplicas.Replica replica = new BrainReplicas(serializer, brain, brain, 1).replica();
+        for (int i = 0; i < GAMES; i++) {
+            Game game = new Game(replica.brain(), replica.opponent());
+            long moves = 0;
+            while (game.status() == Game.PLAYING) {
+                game.run(1);
+                moves = PackedMoves.append(moves, game.board());
+            }
+            replica.played(moves, true);
+        }
+        return serializer.toBytes(brain);
+    }
+
+    private void checkMatchesSequentialTraining(Player brain) {
+        Player.prng.setSeed(ReplayLog.seedArray(7));
+        byte[] sequential = trainSequentially(copy(brain));
+        Player.prng.setSeed(ReplayLog.seedArray(7));
+        byte[] merged = trainOnReplica(copy(brain));
+        // Replicas may only be used for brains whose merged state is what training on one thread gives.
+        assertEquals(Arrays.equals(sequential, merged), BrainReplicas.learnsFromReplay(serializer, brain));
+    }
+
+    @Test
+    public void beanCounterCheckMatchesTraining() {
+        checkMatchesSequentialTraining(new BeanCounterPlayer());
+    }
+
+    @Test
+    public void lmsRankCheckMatchesTraining() {
+        checkMatchesSequentialTraining(new LMSRankPlayer());
+    }
+
+    @Test
+    public void replaysAreSharedWithTheMaster() {
+        Player master = new BeanCounterPlayer();
+        byte[] before = serializer.toBytes(master);
+        Player.prng.setSeed(ReplayLog.seedArray(3));
+        trainOnReplica(master);
+        assertFalse(Arrays.equals(before, serializer.toBytes(master)));
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import org.junit.Before;
+import org.junit.Test;
+import us.looking_glass.tictactoe.Board;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.tictactoe.RandomPlayer;
+import us.looking_glass.util.Serializer;
+
+import static org.junit.Assert.*;
+
+public class GameCodecTest {
+    private RandomPlayer ai;
+    private GameCodec codec;
+
+    @Before
+    public void setUp() {
+        ai = new RandomPlayer();
+        TestPlayerRegistry registry = new TestPlayerRegistry().register(2, ai);
+        codec = new GameCodec(registry, new GameSerializer(registry), new Serializer());
+    }
+
+    /**
+     * Plays the cells in order, alternating players, and returns the game with its packed moves in moves[0].
+     */
+    private static Game play(Player p1, Player p2, long[] moves, int... cells) {
+        Game game = new Game(p1, p2);
+        moves[0] = 0;
+        for (int cell : cells) {
+            game.play(cell / 3, cell % 3, game.getCurrentPlayer());
+            moves[0] = PackedMoves.append(moves[0], game.board());
+        }
+        return game;
+    }
+
+    private static void assertSamePosition(Game expected, Game actual) {
+        for (int cell = 0; cell < 9; cell++)
+            assertEquals("cell " + cell, Board.get(expected.board(), cell / 3, cell % 3), Board.get(actual.board(), cell / 3, cell % 3));
+        assertEquals(expected.status(), actual.status());
+        assertEquals(expected.turn(), actual.turn());
+    }
+
+    @Test
+    public void unfinishedGameKeepsMoveOrderAndPlayers() {
+        long[] moves = new long[1];
+        // Cells 4, 0, 8 in that order; 8, 0, 4 reaches the same board.
+        Game game = play(null, ai, moves, 4, 0, 8);
+        byte[] data = codec.encodeGame(game, moves[0]);
+        assertEquals(GameCodec.GAME_SIZE, data.length);
+        Game decoded = codec.decodeGame(data);
+        assertSamePosition(game, decoded);
+        assertNull(decoded.getPlayer(1));
+        assertSame(ai, decoded.getPlayer(2));
+        assertEquals(moves[0], codec.decodeMoves(data));
+        assertEquals(4, PackedMoves.opening(codec.decodeMoves(data)));
+    }
+
+    /**
+     * Each serializer resolves the players of legacy blobs from its own registry, even with another one in use.
+     */
+    @Test
+    public void legacyGameResolvesPlayersFromItsOwnRegistry() {
+        RandomPlayer other = new RandomPlayer();
+        GameSerializer mine = new GameSerializer(new TestPlayerRegistry().register(2, ai));
+        GameSerializer theirs = new GameSerializer(new TestPlayerRegistry().register(2, other));
+        byte[] data = mine.toBytes(new Game(null, ai));
+        assertSame(ai, ((Game) mine.fromBytes(data)).getPlayer(2));
+        assertSame(other, ((Game) theirs.fromBytes(data)).getPlayer(2));
+    }
+
+    @Test
+    public void finishedGameDecodesWithoutPlayers() {
+        long[] moves = new long[1];
+        // Player 1 wins the diagonal with cell 8 after moving the center first.
+        Game game = play(ai, null, moves, 4, 1, 0, 2, 8);
+        assertEquals(Game.P1_WIN, game.status());
+        byte[] data = codec.encodeGame(game, moves[0]);
+        Game decoded = codec.decodeGame(data);
+        assertSamePosition(game, decoded);
+        assertNull(decoded.getPlayer(1));
+        assertNull(decoded.getPlayer(2));
+        assertEquals(moves[0], codec.decodeMoves(data));
+    }
+
+    @Test
+    public void everyOpeningRoundTrips() {
+        long[] moves = new long[1];
+        for (int first = 0; first < 9; first++) {
+            for (int second = 0; second < 9; second++) {
+                if (second == first)
+                    continue;
+                Game game = play(null, null, moves, first, second);
+                byte[] data = codec.encodeGame(game, moves[0]);
+                assertSamePosition(game, codec.decodeGame(data));
+                assertEquals(first, PackedMoves.opening(codec.decodeMoves(data)));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void movesThatDontReachTheBoardAreRejected() {
+        long[] moves = new long[1];
+        play(null, null, moves, 0, 4);
+        long swapped = moves[0];
+        // The board has cell 4 for player 1, the moves give it to player 2.
+        codec.decodeGame(codec.encodeGame(play(null, null, moves, 4, 0), swapped));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void repeatedCellIsRejected() {
+        long[] moves = new long[1];
+        Game game = play(null, null, moves, 4, 0);
+        // Cell 4 twice.
+        codec.decodeGame(codec.encodeGame(game, 5 | 5 << 4));
+    }
+
+    @Test
+    public void tallyRoundTrips() {
+        long[] tally = new long[] { 0, 1, 127, 128, 1234567890123L, Long.MAX_VALUE };
+        assertArrayEquals(tally, codec.decodeTally(codec.encodeTally(tally)));
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import org.junit.Test;
+import us.looking_glass.tictactoe.BeanCounterPlayer;
+import us.looking_glass.tictactoe.Board;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class GameSessionTest {
+    private final Serializer serializer = new Serializer();
+    private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    private int board;
+    private int waiting;
+    private long finishedMoves = -1;
+
+    private static final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private class RecordingStorage implements GameSession.Storage {
+        @Override
+        public GameSnapshot load(long p1id, long p2id) {
+            return null;
+        }
+
+        @Override
+        public Future<?> save(GameSnapshot snapshot, boolean selected) {
+            FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            done.run();
+            return done;
+        }
+
+        @Override
+        public void brainChanged(Player player) {
+        }
+
+        @Override
+        public void gameFinished(long p1id, long p2id, int result, long moves) {
+            finishedMoves = moves;
+        }
+
+        @Override
+        public void holdBrains(boolean held) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    private GameSession session(PlayerRegistry registry) {
+        GameCodec codec = new GameCodec(registry, new GameSerializer(registry), serializer);
+        return new GameSession(registry, codec, serializer, new RecordingStorage(), new GameSession.Sink() {
+            @Override
+            public void board(int board) {
+                GameSessionTest.this.board = board;
+            }
+
+            @Override
+            public void tally(CharSequence tally) {
+            }
+
+            @Override
+            public void input(int state, int waitingPlayer) {
+                waiting = waitingPlayer;
+            }
+
+            @Override
+            public void error(String message, Throwable e) {
+                error.compareAndSet(null, new AssertionError(message).initCause(e));
+            }
+        }, direct, direct);
+    }
+
+    /**
+     * With direct executors a learning brain's replies are pondered before each human move, so all of them are
+     * hits. The brain learns from the game as if it had played it itself, and its pondering copies leave it alone.
+     */
+    @Test
+    public void ponderedRepliesTeachTheBrain() {
+        Player brain = new BeanCounterPlayer();
+        byte[] before = serializer.toBytes(brain);
+        GameSession session = session(new TestPlayerRegistry().register(2, brain));
+        long hits = Metrics.counter("ai.ponderHits").get();
+        session.start(1, 2);
+        int humanMoves = 0;
+        while (waiting != 3) {
+            assertEquals(1, waiting);
+            int cell = 0;
+            while (Board.get(board, cell / 3, cell % 3) != 0)
+                cell++;
+            session.playMove(cell / 3, cell % 3);
+            humanMoves++;
+        }
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        assertTrue(finishedMoves >= 0);
+        // Every human move but a last one that ends the game gets its reply from pondering.
+        assertTrue(Metrics.counter("ai.ponderHits").get() - hits >= humanMoves - 1);
+        Player played = (Player) serializer.fromBytes(before);
+        BrainReplicas.replay(new Game(null, played), finishedMoves);
+        assertArrayEquals(serializer.toBytes(played), serializer.toBytes(brain));
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LogRecordStoreTest {
+    private static final int KEYS = 20;
+    // Compactions are started by the tests themselves.
+    private static final Executor NO_COMPACTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+        }
+    };
+    private File file;
+    private LogRecordStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("records", ".log");
+        file.delete();
+        store = new LogRecordStore(file, NO_COMPACTOR, 4096);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        file.delete();
+        new File(file.getPath() + ".compact").delete();
+    }
+
+    private LogRecordStore reopen() throws IOException {
+        store.close();
+        return store = new LogRecordStore(file, NO_COMPACTOR, 4096);
+    }
+
+    private static byte[] value(int key, int version) {
+        return String.format("key %d version %d", key, version).getBytes();
+    }
+
+    @Test
+    public void readsBackAfterReopen() throws IOException {
+        byte[] game = new byte[] { 1, 2, 3 };
+        byte[] tally = new byte[] { 4, 5 };
+        store.write(new RecordStore.Batch().brain(2, value(2, 0)).state("a", value(0, 0))
+                .game(new GameSnapshot(1, 2, game, tally, (byte) 3)));
+        store.write(new RecordStore.Batch().state("a", value(0, 1)).state("b", value(1, 0)));
+        store.write(new RecordStore.Batch().state("b", null));
+        reopen();
+        assertArrayEquals(value(2, 0), store.readBrain(2));
+        assertArrayEquals(value(0, 1), store.readState("a"));
+        assertNull(store.readState("b"));
+        GameSnapshot snapshot = store.readGame(1, 2);
+        assertNotNull(snapshot);
+        assertArrayEquals(game, snapshot.game);
+        assertArrayEquals(tally, snapshot.tally);
+        assertEquals(3, snapshot.lastResult);
+        assertNull(store.readGame(2, 1));
+    }
+
+    @Test
+    public void dropsTornFrameOnReopen() throws IOException {
+        store.write(new RecordStore.Batch().state("a", value(0, 0)));
+        int sizeA = store.size();
+        store.write(new RecordStore.Batch().state("a", value(0, 1)).state("b", value(1, 0)));
+        int sizeB = store.size();
+        store.close();
+        // Damage the payload of the last frame, as a write cut short by a crash would leave it.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(sizeB - 1);
+            int last = raf.read();
+            raf.seek(sizeB - 1);
+            raf.write(last ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        store = new LogRecordStore(file, NO_COMPACTOR, 4096);
+        // The damaged batch is gone as a whole, and the earlier one is intact.
+        assertEquals(sizeA, store.size());
+        assertArrayEquals(value(0, 0), store.readState("a"));
+        assertNull(store.readState("b"));
+        // Writes continue over the damaged frame.
+        store.write(new RecordStore.Batch().state("b", value(1, 1)));
+        reopen();
+        assertArrayEquals(value(0, 0), store.readState("a"));
+        assertArrayEquals(value(1, 1), store.readState("b"));
+    }
+
+    @Test
+    public void compactsWhileWriting() throws Exception {
+        final int versions = 500;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int version = 0; version < versions; version++)
+                        for (int key = 0; key < KEYS; key++)
+                            store.write(new RecordStore.Batch().state("key" + key, value(key, version)));
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted())
+                        store.compact();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        writer.start();
+        compactor.start();
+        writer.join();
+        compactor.interrupt();
+        compactor.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        int written = store.size();
+        store.compact();
+        assertTrue(store.size() < written);
+        for (int key = 0; key < KEYS; key++)
+            assertArrayEquals(value(key, versions - 1), store.readState("key" + key));
+        reopen();
+        for (int key = 0; key < KEYS; key++)
+            assertArrayEquals(value(key, versions - 1), store.readState("key" + key));
+    }
+}
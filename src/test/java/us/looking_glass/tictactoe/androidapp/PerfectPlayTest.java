@@ -0,0 +1,74 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import org.junit.Test;
+import us.looking_glass.tictactoe.Board;
+import us.looking_glass.tictactoe.Game;
+
+import static org.junit.Assert.*;
+
+public class PerfectPlayTest {
+    private static void playPerfect(Game game, SplitRandom random) {
+        int cell = PerfectPlay.get().bestMove(game.board(), random.nextInt() >>> 1);
+        game.play(cell / 3, cell % 3, game.getCurrentPlayer());
+    }
+
+    private static void playRandom(Game game, SplitRandom random) {
+        int cell;
+        do {
+            cell = random.nextInt(9);
+        } while (Board.get(game.board(), cell / 3, cell % 3) != 0);
+        game.play(cell / 3, cell % 3, game.getCurrentPlayer());
+    }
+
+    @Test
+    public void perfectPlayDrawsItself() {
+        SplitRandom random = new SplitRandom(1);
+        for (int i = 0; i < 200; i++) {
+            Game game = new Game(null, null);
+            while (game.status() == Game.PLAYING)
+                playPerfect(game, random);
+            assertEquals(Game.DRAW, game.status());
+        }
+    }
+
+    @Test
+    public void perfectPlayNeverLoses() {
+        SplitRandom random = new SplitRandom(2);
+        for (int i = 0; i < 500; i++) {
+            int perfect = (i & 1) + 1;
+            Game game = new Game(null, null);
+            while (game.status() == Game.PLAYING) {
+                if (game.getCurrentPlayer() == perfect)
+                    playPerfect(game, random);
+                else
+                    playRandom(game, random);
+            }
+            assertTrue(game.status() == Game.DRAW || game.status() == perfect);
+        }
+    }
+
+    @Test
+    public void noMoveWhenGameIsOver() {
+        Game game = new Game(null, null);
+        for (int cell : new int[] { 0, 3, 1, 4, 2 })
+            game.play(cell / 3, cell % 3, game.getCurrentPlayer());
+        assertEquals(Game.P1_WIN, game.status());
+        assertEquals(-1, PerfectPlay.get().bestMove(game.board(), 0));
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import org.junit.Before;
+import org.junit.Test;
+import us.looking_glass.tictactoe.BeanCounterPlayer;
+import us.looking_glass.tictactoe.Game;
+import us.looking_glass.tictactoe.OptimalPlayer;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ReplayLogTest {
+    private final Serializer serializer = new Serializer();
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    private ReplayLog.Writer writer;
+    private GameSession session;
+    private boolean over;
+
+    private static final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class NoStorage implements GameSession.Storage {
+        @Override
+        public GameSnapshot load(long p1id, long p2id) {
+            return null;
+        }
+
+        @Override
+        public Future<?> save(GameSnapshot snapshot, boolean selected) {
+            FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            done.run();
+            return done;
+        }
+
+        @Override
+        public void brainChanged(Player player) {
+        }
+
+        @Override
+        public void gameFinished(long p1id, long p2id, int result, long moves) {
+        }
+
+        @Override
+        public void holdBrains(boolean held) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        TestPlayerRegistry registry = new TestPlayerRegistry()
+                .register(2, new BeanCounterPlayer())
+                .register(4, new OptimalPlayer());
+        GameCodec codec = new GameCodec(registry, new GameSerializer(registry), serializer);
+        session = new GameSession(registry, codec, serializer, new NoStorage(), new GameSession.Sink() {
+            @Override
+            public void board(int board) {
+            }
+
+            @Override
+            public void tally(CharSequence tally) {
+            }
+
+            @Override
+            public void input(int state, int waitingPlayer) {
+                over = waitingPlayer == 3;
+            }
+
+            @Override
+            public void error(String message, Throwable e) {
+                error.compareAndSet(null, new AssertionError(message).initCause(e));
+            }
+        }, direct, direct);
+        writer = new ReplayLog.Writer(log, serializer);
+        session.setReplayLog(writer);
+        session.setRandom(new SplitRandom(1));
+    }
+
+    private void finishGame() {
+        while (!over)
+            session.tap();
+    }
+
+    private ReplayLog.Result replay() throws IOException {
+        writer.flush();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        return ReplayLog.replay(new ByteArrayInputStream(log.toByteArray()), serializer);
+    }
+
+    @Test
+    public void quietGamesReplay() throws IOException {
+        session.start(2, 4);
+        finishGame();
+        session.tap();
+        finishGame();
+        ReplayLog.Result result = replay();
+        assertEquals(2, result.games);
+        assertEquals(0, result.diverged);
+    }
+
+    /**
+     * A match started in the background while a logged game is in progress draws from Player.prng between the
+     * game's moves, so the game can't be replayed and is left out; the next game, played after the match, is logged.
+     */
+    @Test
+    public void gameOverlappingBackgroundMatchIsNotLogged() throws Exception {
+        session.start(2, 4);
+        session.tap();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread match = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ReplayLog.PrngUse prng = ReplayLog.usePrng();
+                try {
+                    started.countDown();
+                    Player p1 = new OptimalPlayer();
+                    Player p2 = new BeanCounterPlayer();
+                    while (!stop.get()) {
+                        Game game = new Game(p1, p2);
+                        while (game.status() == Game.PLAYING)
+                            game.run(1);
+                    }
+                } finally {
+                    prng.close();
+                }
+            }
+        });
+        match.start();
+        try {
+            started.await();
+            finishGame();
+        } finally {
+            stop.set(true);
+            match.join();
+        }
+        assertEquals(0, replay().games);
+        session.tap();
+        finishGame();
+        ReplayLog.Result result = replay();
+        assertEquals(1, result.games);
+        assertEquals(0, result.diverged);
+    }
+
+    @Test
+    public void closingTwiceReleasesOnce() {
+        ReplayLog.PrngUse first = ReplayLog.usePrng();
+        ReplayLog.PrngUse second = ReplayLog.usePrng();
+        first.close();
+        first.close();
+        assertTrue(ReplayLog.prngQuiet() < 0);
+        second.close();
+        assertTrue(ReplayLog.prngQuiet() >= 0);
+    }
+}
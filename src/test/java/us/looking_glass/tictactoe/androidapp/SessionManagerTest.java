@@ -0,0 +1,223 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import us.looking_glass.tictactoe.BeanCounterPlayer;
+import us.looking_glass.tictactoe.LMSRankPlayer;
+import us.looking_glass.tictactoe.Player;
+import us.looking_glass.util.Serializer;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SessionManagerTest {
+    private final Serializer serializer = new Serializer();
+    private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    private Thread.UncaughtExceptionHandler defaultHandler;
+    private ExecutorService storageThread;
+    private SessionManager manager;
+    private SerializingStorage storage;
+
+    /**
+     * Storage that, like BrainPersister, serializes dirty brains under their locks when flushed.
+     */
+    private class SerializingStorage implements GameSession.Storage {
+        private final Map<String, GameSnapshot> stored = new ConcurrentHashMap<String, GameSnapshot>();
+        private final Map<Player, Boolean> dirty = new IdentityHashMap<Player, Boolean>();
+        final AtomicInteger games = new AtomicInteger();
+        final AtomicInteger serialized = new AtomicInteger();
+
+        @Override
+        public GameSnapshot load(long p1id, long p2id) {
+            return stored.get(p1id + ":" + p2id);
+        }
+
+        @Override
+        public Future<?> save(GameSnapshot snapshot, boolean selected) {
+            stored.put(snapshot.p1id + ":" + snapshot.p2id, snapshot);
+            FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            done.run();
+            return done;
+        }
+
+        @Override
+        public void brainChanged(Player player) {
+            if (player != null && player.saveable())
+                dirty.put(player, Boolean.TRUE);
+        }
+
+        @Override
+        public void gameFinished(long p1id, long p2id, int result, long moves) {
+            games.incrementAndGet();
+        }
+
+        @Override
+        public void holdBrains(boolean held) {
+        }
+
+        @Override
+        public void flush() {
+            for (Player brain : dirty.keySet()) {
+                synchronized (brain) {
+                    synchronized (serializer) {
+                        serializer.toBytes(brain);
+                    }
+                }
+                serialized.incrementAndGet();
+            }
+            dirty.clear();
+        }
+    }
+
+    private class FailingSink implements GameSession.Sink {
+        @Override
+        public void board(int board) {
+        }
+
+        @Override
+        public void tally(CharSequence tally) {
+        }
+
+        @Override
+        public void input(int state, int waitingPlayer) {
+        }
+
+        @Override
+        public void error(String message, Throwable e) {
+            error.compareAndSet(null, new AssertionError(message).initCause(e));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        // Exceptions thrown on the manager's threads fail the test.
+        defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                error.compareAndSet(null, new AssertionError("Uncaught on " + t.getName()).initCause(e));
+            }
+        });
+        TestPlayerRegistry registry = new TestPlayerRegistry()
+                .register(2, new BeanCounterPlayer())
+                .register(3, new LMSRankPlayer())
+                .register(4, new BeanCounterPlayer());
+        GameCodec codec = new GameCodec(registry, new GameSerializer(registry), serializer);
+        storageThread = Executors.newSingleThreadExecutor();
+        storage = new SerializingStorage();
+        manager = new SessionManager(registry, codec, serializer, storage, storageThread, 4, 60000);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        try {
+            assertTrue("sessions still running", manager.shutdown(5000));
+            storageThread.shutdownNow();
+            if (error.get() != null)
+                throw new AssertionError(error.get());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+    }
+
+    /**
+     * Two matchups share brain 3 and save after every tap from threads of their own. The storage thread serializes
+     * brain 3 under its lock while the matchups' tasks hold it, which deadlocked when tasks waited for storage.
+     */
+    @Test(timeout = 60000)
+    public void sharedBrainConcurrentSavesDontDeadlock() throws Exception {
+        final SessionManager.Matchup first = manager.open(2, 3, new FailingSink());
+        final SessionManager.Matchup second = manager.open(3, 4, new FailingSink());
+        final CyclicBarrier start = new CyclicBarrier(2);
+        ExecutorService drivers = Executors.newFixedThreadPool(2);
+        Future<?>[] driven = new Future<?>[2];
+        for (int i = 0; i < 2; i++) {
+            final SessionManager.Matchup matchup = i == 0 ? first : second;
+            driven[i] = drivers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int tap = 0; tap < 2000; tap++) {
+                        matchup.tap();
+                        matchup.save();
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<?> future : driven)
+            future.get();
+        drivers.shutdown();
+        final CountDownLatch idle = new CountDownLatch(2);
+        Runnable countDown = new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        };
+        first.whenIdle(countDown);
+        second.whenIdle(countDown);
+        assertTrue("matchups stuck", idle.await(30, TimeUnit.SECONDS));
+        // The storage thread is still responsive.
+        assertNotNull(storageThread.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return Boolean.TRUE;
+            }
+        }).get(30, TimeUnit.SECONDS));
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        assertTrue(storage.games.get() > 0);
+        assertTrue(storage.serialized.get() > 0);
+        assertNotNull(storage.load(2, 3));
+        assertNotNull(storage.load(3, 4));
+    }
+
+    /**
+     * Shuts down with AI moves queued on both matchups. Shutting down waits for them and saves the matchups, and
+     * commands sent afterwards are dropped rather than thrown at the caller or a worker.
+     */
+    @Test(timeout = 60000)
+    public void shutdownDrainsQueuedMoves() throws Exception {
+        SessionManager.Matchup first = manager.open(2, 3, new FailingSink());
+        SessionManager.Matchup second = manager.open(3, 4, new FailingSink());
+        for (int tap = 0; tap < 500; tap++) {
+            first.tap();
+            second.tap();
+        }
+        assertTrue("sessions still running", manager.shutdown(30000));
+        assertNotNull(storage.load(2, 3));
+        assertNotNull(storage.load(3, 4));
+        assertEquals(0, manager.liveSessions());
+        first.tap();
+        manager.open(2, 4, new FailingSink()).tap();
+        manager.evictIdle();
+        assertTrue(manager.matchups().isEmpty());
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ Copyright 2013 Andrew Mahone
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package us.looking_glass.tictactoe.androidapp;
+
+import us.looking_glass.tictactoe.Player;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Brains registered up front, standing in for TicTacToeApp's player cache outside of Android. Shared by the tests and
+ * the benchmarks.
+ */
+public class TestPlayerRegistry implements PlayerRegistry {
+    private final Map<Long, Player> idToPlayer = new HashMap<Long, Player>();
+    private final Map<Player, Long> playerToId = new IdentityHashMap<Player, Long>();
+
+    public TestPlayerRegistry register(long id, Player player) {
+        idToPlayer.put(id, player);
+        playerToId.put(player, id);
+        return this;
+    }
+
+    @Override
+    public Player getPlayer(long id) {
+        return idToPlayer.get(id);
+    }
+
+    @Override
+    public long getPlayerID(Player player) {
+        Long id = playerToId.get(player);
+        if (id == null)
+            throw new IllegalStateException(String.format("Player not in ID index: %s", player));
+        return id;
+    }
+}